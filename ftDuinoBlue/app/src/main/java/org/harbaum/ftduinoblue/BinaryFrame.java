@@ -0,0 +1,109 @@
+package org.harbaum.ftduinoblue;
+
+// Compact binary framing of control events.
+//
+// A text frame like "JOYSTICK 12 -100 100:XX\n" doesn't fit into a single 20
+// byte BLE write and has to be split. Devices reporting at least protocol
+// version 1.1.0 also accept binary frames, which fit in any case:
+//
+//   opcode   one byte, always >= 0x80 so it can't be mistaken for text
+//   id       unsigned varint, seven bits per byte, lowest bits first
+//   values   big endian, one byte for button and switch states and two byte
+//            signed values for sliders and joysticks
+//   crc      CRC-8 (polynomial 0x07) over all bytes before
+//
+// The text protocol is still used for everything else and with older devices.
+public class BinaryFrame {
+    public final static int OP_BUTTON = 0x81;
+    public final static int OP_SWITCH = 0x82;
+    public final static int OP_SLIDER = 0x83;
+    public final static int OP_JOYSTICK = 0x84;
+
+    // opcode, five byte varint, two int16 values and the crc
+    public final static int MAX_LENGTH = 11;
+
+    // the first protocol version accepting binary frames
+    public final static String MIN_VERSION = "1.1.0";
+
+    private final static byte[] CRC_TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++)
+                crc = ((crc & 0x80) != 0) ? (crc << 1) ^ 0x07 : crc << 1;
+            CRC_TABLE[i] = (byte) crc;
+        }
+    }
+
+    public static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++)
+            crc = CRC_TABLE[(crc ^ data[i]) & 0xff] & 0xff;
+        return crc;
+    }
+
+    private static boolean isInt16(int value) {
+        return (value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE);
+    }
+
+    // true if the event can be sent as binary frame
+    public static boolean canEncode(ControlEvent event) {
+        switch (event.type()) {
+            case BUTTON:
+            case SWITCH:
+                return event.id() >= 0;
+            case SLIDER:
+                return (event.id() >= 0) && isInt16(event.value());
+            case JOYSTICK:
+                return (event.id() >= 0) && isInt16(event.x()) && isInt16(event.y());
+            default:
+                return false;
+        }
+    }
+
+    private static int putInt16(byte[] dst, int pos, int value) {
+        dst[pos++] = (byte) (value >> 8);
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    // encode the event into dst which needs to have room for MAX_LENGTH
+    // bytes. Returns the length of the frame
+    public static int encode(ControlEvent event, byte[] dst) {
+        int pos = 0;
+
+        switch (event.type()) {
+            case BUTTON:   dst[pos++] = (byte) OP_BUTTON;   break;
+            case SWITCH:   dst[pos++] = (byte) OP_SWITCH;   break;
+            case SLIDER:   dst[pos++] = (byte) OP_SLIDER;   break;
+            case JOYSTICK: dst[pos++] = (byte) OP_JOYSTICK; break;
+            default:
+                throw new IllegalArgumentException("No binary frame for " + event.type());
+        }
+
+        int id = event.id();
+        while (id >= 0x80) {
+            dst[pos++] = (byte) ((id & 0x7f) | 0x80);
+            id >>>= 7;
+        }
+        dst[pos++] = (byte) id;
+
+        switch (event.type()) {
+            case BUTTON:
+            case SWITCH:
+                dst[pos++] = (byte) (event.on() ? 1 : 0);
+                break;
+            case SLIDER:
+                pos = putInt16(dst, pos, event.value());
+                break;
+            case JOYSTICK:
+                pos = putInt16(dst, pos, event.x());
+                pos = putInt16(dst, pos, event.y());
+                break;
+        }
+
+        dst[pos] = (byte) crc8(dst, 0, pos);
+        return pos + 1;
+    }
+}
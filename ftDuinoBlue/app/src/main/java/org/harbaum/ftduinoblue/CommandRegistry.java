@@ -0,0 +1,127 @@
+package org.harbaum.ftduinoblue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Maps the command tokens received from the device to typed handlers. Each
+// command comes with an argument parser that turns the remainder of the line
+// into the values of a DeviceCommand, so handlers never see the raw strings.
+public class CommandRegistry {
+    public interface Handler {
+        void handle(DeviceCommand command);
+    }
+
+    public interface ArgumentParser {
+        // throws an IllegalArgumentException if the arguments don't match
+        void parse(CommandScanner scanner, DeviceCommand.Builder command);
+    }
+
+    // the remainder of the line as text, e.g. "VERSION 1.0.0"
+    public final static ArgumentParser TEXT = new ArgumentParser() {
+        @Override public void parse(CommandScanner scanner, DeviceCommand.Builder command) {
+            command.text(scanner.rest());
+        }
+    };
+
+    // just an element id, e.g. "ENABLE 3"
+    public final static ArgumentParser ID = new ArgumentParser() {
+        @Override public void parse(CommandScanner scanner, DeviceCommand.Builder command) {
+            command.id(scanner.nextInt());
+        }
+    };
+
+    // an element id and a non-empty text, e.g. "TEXT 3 Hello"
+    public final static ArgumentParser ID_TEXT = new ArgumentParser() {
+        @Override public void parse(CommandScanner scanner, DeviceCommand.Builder command) {
+            command.id(scanner.nextInt());
+            if (!scanner.hasMore()) throw new IllegalArgumentException("Missing text");
+            command.text(scanner.rest());
+        }
+    };
+
+    // an element id and a number, e.g. "SLIDER 3 42"
+    public final static ArgumentParser ID_INT = new ArgumentParser() {
+        @Override public void parse(CommandScanner scanner, DeviceCommand.Builder command) {
+            command.id(scanner.nextInt());
+            command.value(scanner.nextInt());
+        }
+    };
+
+    // an element id and ON or anything else for off, e.g. "SWITCH 3 ON"
+    public final static ArgumentParser ID_BOOLEAN = new ArgumentParser() {
+        @Override public void parse(CommandScanner scanner, DeviceCommand.Builder command) {
+            command.id(scanner.nextInt());
+            if (!scanner.hasMore()) throw new IllegalArgumentException("Missing state");
+            command.on(scanner.restEqualsIgnoreCase("ON"));
+        }
+    };
+
+    // an element id and a color, e.g. "COLOR 3 #ff0000"
+    public final static ArgumentParser ID_COLOR = new ArgumentParser() {
+        @Override public void parse(CommandScanner scanner, DeviceCommand.Builder command) {
+            command.id(scanner.nextInt());
+            command.value(scanner.nextColor());
+        }
+    };
+
+    private static class Entry {
+        final String token;
+        final DeviceCommand.Type type;
+        final ArgumentParser parser;
+        final Handler handler;
+
+        Entry(String token, DeviceCommand.Type type, ArgumentParser parser, Handler handler) {
+            this.token = token; this.type = type; this.parser = parser; this.handler = handler;
+        }
+    }
+
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final CommandScanner mScanner = new CommandScanner();
+    private final DeviceCommand.Builder mBuilder = new DeviceCommand.Builder(DeviceCommand.Type.UNKNOWN, "");
+    private Handler mDefaultHandler = null;
+    private int mMalformed = 0;
+
+    public void register(String token, DeviceCommand.Type type, ArgumentParser parser, Handler handler) {
+        mEntries.add(new Entry(token, type, parser, handler));
+    }
+
+    // handler for all commands without a registered token. These are passed
+    // as UNKNOWN with the remainder of the line as text
+    public void setDefaultHandler(Handler handler) {
+        mDefaultHandler = handler;
+    }
+
+    // parse a line and pass it to the matching handler. Returns false if the
+    // command was unknown and not handled or if its arguments were invalid
+    public boolean dispatch(CharSequence line) {
+        mScanner.reset(line);
+
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.get(i);
+            if (mScanner.tokenEqualsIgnoreCase(entry.token)) {
+                mBuilder.reset(entry.type, entry.token);
+                try {
+                    entry.parser.parse(mScanner, mBuilder);
+                } catch (IllegalArgumentException e) {
+                    mMalformed++;
+                    return false;
+                }
+                entry.handler.handle(mBuilder.build());
+                return true;
+            }
+        }
+
+        if (mDefaultHandler == null)
+            return false;
+
+        mBuilder.reset(DeviceCommand.Type.UNKNOWN, mScanner.token());
+        TEXT.parse(mScanner, mBuilder);
+        mDefaultHandler.handle(mBuilder.build());
+        return true;
+    }
+
+    // number of lines dropped because of invalid arguments
+    public int malformed() {
+        return mMalformed;
+    }
+}
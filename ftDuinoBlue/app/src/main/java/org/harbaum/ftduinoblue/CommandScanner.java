@@ -0,0 +1,145 @@
+package org.harbaum.ftduinoblue;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// A simple hand written scanner splitting a received line into the command
+// token and its space separated arguments. It works directly on the
+// CharSequence provided by the FrameDecoder and doesn't need any regex.
+public class CommandScanner {
+    // the color names known to android.graphics.Color.parseColor()
+    private final static Map<String, Integer> COLOR_NAMES = new HashMap<>();
+    static {
+        COLOR_NAMES.put("black",     0xFF000000);
+        COLOR_NAMES.put("darkgray",  0xFF444444);
+        COLOR_NAMES.put("gray",      0xFF888888);
+        COLOR_NAMES.put("lightgray", 0xFFCCCCCC);
+        COLOR_NAMES.put("white",     0xFFFFFFFF);
+        COLOR_NAMES.put("red",       0xFFFF0000);
+        COLOR_NAMES.put("green",     0xFF00FF00);
+        COLOR_NAMES.put("blue",      0xFF0000FF);
+        COLOR_NAMES.put("yellow",    0xFFFFFF00);
+        COLOR_NAMES.put("cyan",      0xFF00FFFF);
+        COLOR_NAMES.put("magenta",   0xFFFF00FF);
+        COLOR_NAMES.put("aqua",      0xFF00FFFF);
+        COLOR_NAMES.put("fuchsia",   0xFFFF00FF);
+        COLOR_NAMES.put("darkgrey",  0xFF444444);
+        COLOR_NAMES.put("grey",      0xFF888888);
+        COLOR_NAMES.put("lightgrey", 0xFFCCCCCC);
+        COLOR_NAMES.put("lime",      0xFF00FF00);
+        COLOR_NAMES.put("maroon",    0xFF800000);
+        COLOR_NAMES.put("navy",      0xFF000080);
+        COLOR_NAMES.put("olive",     0xFF808000);
+        COLOR_NAMES.put("purple",    0xFF800080);
+        COLOR_NAMES.put("silver",    0xFFC0C0C0);
+        COLOR_NAMES.put("teal",      0xFF008080);
+    }
+
+    private CharSequence mInput = "";
+    private int mPos = 0;
+    private int mEnd = 0;
+    private int mTokenStart = 0;
+    private int mTokenEnd = 0;
+
+    // start scanning a new line. The first token is the command itself
+    public void reset(CharSequence input) {
+        mInput = input;
+        mPos = 0;
+        mEnd = input.length();
+        while ((mEnd > 0) && (input.charAt(mEnd - 1) <= ' ')) mEnd--;
+
+        skipSpaces();
+        mTokenStart = mPos;
+        while ((mPos < mEnd) && (mInput.charAt(mPos) != ' ')) mPos++;
+        mTokenEnd = mPos;
+    }
+
+    private void skipSpaces() {
+        while ((mPos < mEnd) && (mInput.charAt(mPos) <= ' ')) mPos++;
+    }
+
+    public boolean tokenEqualsIgnoreCase(String s) {
+        if (s.length() != mTokenEnd - mTokenStart)
+            return false;
+        for (int i = 0; i < s.length(); i++)
+            if (Character.toUpperCase(mInput.charAt(mTokenStart + i)) != Character.toUpperCase(s.charAt(i)))
+                return false;
+        return true;
+    }
+
+    public String token() {
+        return mInput.subSequence(mTokenStart, mTokenEnd).toString();
+    }
+
+    public boolean hasMore() {
+        skipSpaces();
+        return mPos < mEnd;
+    }
+
+    // parse a decimal integer argument with optional sign
+    public int nextInt() {
+        skipSpaces();
+        boolean negative = false;
+        if ((mPos < mEnd) && ((mInput.charAt(mPos) == '-') || (mInput.charAt(mPos) == '+')))
+            negative = (mInput.charAt(mPos++) == '-');
+
+        int start = mPos;
+        long value = 0;
+        while ((mPos < mEnd) && (mInput.charAt(mPos) >= '0') && (mInput.charAt(mPos) <= '9')) {
+            value = 10 * value + (mInput.charAt(mPos++) - '0');
+            if (value > Integer.MAX_VALUE)
+                throw new NumberFormatException("Number too large");
+        }
+
+        // a number needs at least one digit and must end at a word boundary
+        if ((mPos == start) || ((mPos < mEnd) && (mInput.charAt(mPos) != ' ')))
+            throw new NumberFormatException("Invalid number");
+
+        return (int) (negative ? -value : value);
+    }
+
+    // the remaining arguments must be exactly the given word
+    public boolean restEqualsIgnoreCase(String s) {
+        skipSpaces();
+        if (s.length() != mEnd - mPos)
+            return false;
+        for (int i = 0; i < s.length(); i++)
+            if (Character.toUpperCase(mInput.charAt(mPos + i)) != Character.toUpperCase(s.charAt(i)))
+                return false;
+        return true;
+    }
+
+    // the remaining arguments as a string
+    public String rest() {
+        skipSpaces();
+        String rest = mInput.subSequence(mPos, mEnd).toString();
+        mPos = mEnd;
+        return rest;
+    }
+
+    // parse the remaining arguments as color in the formats accepted by
+    // android.graphics.Color.parseColor(): #RRGGBB, #AARRGGBB or a color name
+    public int nextColor() {
+        skipSpaces();
+        int length = mEnd - mPos;
+        if ((length > 0) && (mInput.charAt(mPos) == '#')) {
+            if ((length != 7) && (length != 9))
+                throw new IllegalArgumentException("Unknown color");
+
+            long color = 0;
+            for (int i = 1; i < length; i++) {
+                int digit = Character.digit(mInput.charAt(mPos + i), 16);
+                if (digit < 0) throw new IllegalArgumentException("Unknown color");
+                color = 16 * color + digit;
+            }
+            mPos = mEnd;
+            return (length == 7) ? (int) (color | 0xff000000L) : (int) color;
+        }
+
+        Integer color = COLOR_NAMES.get(rest().toLowerCase(Locale.ROOT));
+        if (color == null)
+            throw new IllegalArgumentException("Unknown color");
+        return color;
+    }
+}
@@ -0,0 +1,120 @@
+package org.harbaum.ftduinoblue;
+
+// Decides about the BLE connection priority depending on the link activity.
+//
+// A connection with high priority uses a short connection interval and thus
+// reduces the latency of every message, but costs power on both sides. The
+// high priority is therefore only requested while the user is operating the
+// controls or the device is sending. Once the link has been idle for a while
+// it drops back to the idle priority.
+//
+// All times are in milliseconds.
+public class ConnectionPriority {
+    // the values of BluetoothGatt.CONNECTION_PRIORITY_*
+    public final static int BALANCED = 0;
+    public final static int HIGH = 1;
+    public final static int LOW_POWER = 2;
+    public final static int NONE = -1;
+
+    private final static String[] NAMES = { "balanced", "high", "low power" };
+
+    private long mIdleTimeout;
+    private int mIdlePriority;
+
+    private int mPriority = BALANCED;   // the default of a new connection
+    private long mLastActivity = 0;
+    private long mHighSince = 0;
+
+    private int mTransitions = 0;
+    private long mHighTime = 0;
+
+    public ConnectionPriority(long idleTimeout, int idlePriority) {
+        mIdleTimeout = idleTimeout;
+        mIdlePriority = idlePriority;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        mIdleTimeout = idleTimeout;
+    }
+
+    public long idleTimeout() {
+        return mIdleTimeout;
+    }
+
+    // the priority to drop back to, BALANCED or LOW_POWER
+    public void setIdlePriority(int idlePriority) {
+        mIdlePriority = idlePriority;
+    }
+
+    // a new connection has been established
+    public void reset() {
+        mPriority = BALANCED;
+        mTransitions = 0;
+        mHighTime = 0;
+    }
+
+    // something has been sent or received. Returns the priority to be requested
+    // or NONE if it's to stay unchanged
+    public int onActivity(long now) {
+        mLastActivity = now;
+        if (mPriority == HIGH)
+            return NONE;
+
+        mHighSince = now;
+        return change(HIGH);
+    }
+
+    // time until the link counts as idle. Returns 0 if it's idle already
+    public long idleIn(long now) {
+        if (mPriority != HIGH)
+            return 0;
+        return Math.max(0, mLastActivity + mIdleTimeout - now);
+    }
+
+    // check whether the link has become idle. Returns the priority to be requested
+    // or NONE if it's to stay unchanged
+    public int onIdleCheck(long now) {
+        if ((mPriority != HIGH) || (idleIn(now) > 0))
+            return NONE;
+
+        mHighTime += now - mHighSince;
+        return change(mIdlePriority);
+    }
+
+    private int change(int priority) {
+        mPriority = priority;
+        mTransitions++;
+        return priority;
+    }
+
+    public int priority() {
+        return mPriority;
+    }
+
+    public int transitions() {
+        return mTransitions;
+    }
+
+    // total time spent in high priority, not counting the current period
+    public long highTime() {
+        return mHighTime;
+    }
+
+    // the longest connection interval Android uses for a priority in milliseconds
+    public static long interval(int priority) {
+        switch (priority) {
+            case HIGH:      return 15;
+            case LOW_POWER: return 125;
+            default:        return 50;
+        }
+    }
+
+    public static String name(int priority) {
+        return ((priority >= 0) && (priority < NAMES.length)) ? NAMES[priority] : "none";
+    }
+
+    @Override
+    public String toString() {
+        return name(mPriority) + ", " + mTransitions + " transitions, high for " + mHighTime + "ms";
+    }
+}
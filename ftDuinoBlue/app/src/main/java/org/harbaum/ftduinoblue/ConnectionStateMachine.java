@@ -0,0 +1,232 @@
+package org.harbaum.ftduinoblue;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+// The lifecycle of a connection to a device.
+//
+// A connection passes through a fixed sequence of phases until it's ready:
+// the GATT connection is established, the services are discovered, the
+// notifications are enabled, the version is checked and the layout is
+// received. Only the transitions of that sequence are accepted, anything else
+// is rejected, e.g. a late service discovery result of a connection being
+// closed. The connection may be closed from every state, though.
+//
+// An established connection that gets lost is reconnecting until the link is
+// back. It then passes the same phases as before but the layout.
+//
+// Every phase but IDLE and READY has a deadline. The time spent in every phase
+// is recorded, so it can be seen which one makes connecting slow.
+//
+// All times are in milliseconds.
+public class ConnectionStateMachine {
+    public enum State { IDLE, SCANNING, CONNECTING, DISCOVERING, SUBSCRIBING, HANDSHAKE, LAYOUT, READY, DISCONNECTING, RECONNECTING }
+
+    private final static State[] STATES = State.values();
+
+    // the phases of a setup in the order they are passed
+    private final static State[] PHASES = {
+            State.SCANNING, State.RECONNECTING, State.CONNECTING, State.DISCOVERING,
+            State.SUBSCRIBING, State.HANDSHAKE, State.LAYOUT
+    };
+
+    // the default deadlines per state, 0 for none. Subscribing includes the MTU
+    // negotiation. The requests of the handshake and the layout are sent again
+    // several times before they fail, so these deadlines are only a last resort
+    private final static long[] TIMEOUTS = {
+            0,        // IDLE
+            0,        // SCANNING, until the user picks a device
+            10000,    // CONNECTING
+            10000,    // DISCOVERING
+            5000,     // SUBSCRIBING
+            30000,    // HANDSHAKE
+            60000,    // LAYOUT
+            0,        // READY
+            2000,     // DISCONNECTING
+            20000     // RECONNECTING, for all attempts together
+    };
+
+    private final long[] mTimeouts = TIMEOUTS.clone();
+
+    private State mState = State.IDLE;
+    private long mEntered;
+    private long mSetupStarted = 0;
+    private long mSetupTime = -1;     // of the last connection that became ready
+    private int mRejected = 0;
+
+    // statistics per state
+    private final int[] mCount = new int[STATES.length];
+    private final long[] mTotal = new long[STATES.length];
+    private final long[] mMax = new long[STATES.length];
+    private final long[] mLast = new long[STATES.length];   // of the current or last setup
+
+    public ConnectionStateMachine(long now) {
+        mEntered = now;
+        Arrays.fill(mLast, -1);
+    }
+
+    // true if a connection may change from one state to the other
+    public static boolean isAllowed(State from, State to) {
+        // a connection can be given up at any time
+        if ((to == State.DISCONNECTING) || (to == State.IDLE))
+            return from != to;
+
+        // and an established one that's lost can be resumed
+        if (to == State.RECONNECTING)
+            return isConnected(from);
+
+        switch (from) {
+            case IDLE:        return (to == State.SCANNING) || (to == State.CONNECTING);
+            case SCANNING:    return to == State.CONNECTING;
+            case CONNECTING:  return to == State.DISCOVERING;
+            case DISCOVERING: return to == State.SUBSCRIBING;
+            case SUBSCRIBING: return to == State.HANDSHAKE;
+            // devices not providing a layout are ready after the handshake
+            case HANDSHAKE:   return (to == State.LAYOUT) || (to == State.READY);
+            case LAYOUT:      return to == State.READY;
+            case RECONNECTING: return to == State.DISCOVERING;
+            default:          return false;
+        }
+    }
+
+    // change to the given state. Returns false and stays in the current state
+    // if that's not allowed
+    public boolean moveTo(State next, long now) {
+        if (!isAllowed(mState, next)) {
+            mRejected++;
+            return false;
+        }
+
+        if (mState != State.IDLE) {
+            int i = mState.ordinal();
+            long time = now - mEntered;
+            mCount[i]++;
+            mTotal[i] += time;
+            mLast[i] = time;
+            if (time > mMax[i]) mMax[i] = time;
+        }
+
+        // a new connection setup starts
+        if ((mState == State.IDLE) || (next == State.RECONNECTING)) {
+            Arrays.fill(mLast, -1);
+            mSetupStarted = now;
+        }
+
+        if (next == State.READY)
+            mSetupTime = now - mSetupStarted;
+
+        mState = next;
+        mEntered = now;
+        return true;
+    }
+
+    public State state() {
+        return mState;
+    }
+
+    // established and not being closed
+    public boolean isConnected() {
+        return isConnected(mState);
+    }
+
+    private static boolean isConnected(State state) {
+        return (state.compareTo(State.DISCOVERING) >= 0) && (state.compareTo(State.READY) <= 0);
+    }
+
+    public long timeIn(long now) {
+        return now - mEntered;
+    }
+
+    // the deadline of a state, 0 for none
+    public void setTimeout(State state, long timeout) {
+        mTimeouts[state.ordinal()] = timeout;
+    }
+
+    public long timeout(State state) {
+        return mTimeouts[state.ordinal()];
+    }
+
+    // time until the deadline of the current state passes or -1 if it has none
+    public long timeLeft(long now) {
+        long timeout = mTimeouts[mState.ordinal()];
+        if (timeout <= 0)
+            return -1;
+        return Math.max(0, mEntered + timeout - now);
+    }
+
+    public boolean isExpired(long now) {
+        return timeLeft(now) == 0;
+    }
+
+    public int count(State state) {
+        return mCount[state.ordinal()];
+    }
+
+    public long total(State state) {
+        return mTotal[state.ordinal()];
+    }
+
+    public long max(State state) {
+        return mMax[state.ordinal()];
+    }
+
+    // time spent in a state during the current or last setup, -1 if it wasn't
+    public long last(State state) {
+        return mLast[state.ordinal()];
+    }
+
+    // time from leaving IDLE or from losing the link until READY of the last
+    // connection that got ready, -1 if none did
+    public long setupTime() {
+        return mSetupTime;
+    }
+
+    // the phase of the current or last setup that took longest, IDLE if none
+    // has been passed yet. Scanning waits for the user and doesn't count
+    public State slowest() {
+        State slowest = State.IDLE;
+        long time = -1;
+        for (State state : PHASES) {
+            if ((state != State.SCANNING) && (mLast[state.ordinal()] > time)) {
+                time = mLast[state.ordinal()];
+                slowest = state;
+            }
+        }
+        return slowest;
+    }
+
+    public int rejected() {
+        return mRejected;
+    }
+
+    private static String name(State state) {
+        return state.name().toLowerCase(Locale.US);
+    }
+
+    // the times of the phases of the current or last setup
+    public String phases() {
+        StringBuilder sb = new StringBuilder();
+        for (State state : PHASES) {
+            long time = mLast[state.ordinal()];
+            if (time < 0)
+                continue;
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(name(state)).append(' ').append(time).append("ms");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name(mState));
+        sb.append(", setup ").append(mSetupTime).append("ms (").append(phases()).append(")");
+        for (State state : STATES) {
+            int i = state.ordinal();
+            if (mCount[i] == 0)
+                continue;
+            sb.append("; ").append(name(state)).append(' ').append(mCount[i]).append("x avg ")
+                    .append(mTotal[i] / mCount[i]).append("ms max ").append(mMax[i]).append("ms");
+        }
+        return sb.append(", ").append(mRejected).append(" rejected").toString();
+    }
+}
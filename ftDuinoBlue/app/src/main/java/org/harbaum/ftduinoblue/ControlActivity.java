@@ -5,14 +5,16 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ComponentName;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Bundle;
+import android.os.IBinder;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
@@ -26,6 +28,7 @@ import android.text.method.ScrollingMovementMethod;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.util.TypedValue;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -45,7 +48,9 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import io.github.controlwear.virtual.joystick.android.JoystickView;
@@ -62,6 +67,7 @@ public class ControlActivity extends AppCompatActivity {
     private boolean mInitiatedDisconnection = false;
     private List<View> mViews = new ArrayList<>();
     private boolean mIsDemo = false;
+    private final Map<Integer, String> mItemDevices = new HashMap<>();  // items on further devices
 
     private SensorManager mSensorManager = null;
     private float[] mSensorAccel = new float[3];
@@ -70,115 +76,83 @@ public class ControlActivity extends AppCompatActivity {
     private Runnable mSensorLimiter = null;
     private List<LayoutXmlParser.Item> mSensors = new ArrayList<>();
 
-    void parseMessage(String cmd, String data) {
-        // split data string into seperate parts
-        String[] dataParts = data.trim().split(" +", 2);
-        // we need at least the id field
-        if (dataParts.length >= 1) {
-            try {
-                int id = Integer.parseInt(dataParts[0]);
-
-                // try to find an item with this id
-                for (View view : mViews) {
-                    if (view.getId() == id) {
-                        // use this to update views
-                        switch (cmd.trim().toLowerCase()) {
-                            case "enable":
-                                Log.d(TAG, "Enable " + view.getId());
-                                view.setEnabled(true);
-                                break;
-
-                            case "disable":
-                                Log.d(TAG, "Disable " + view.getId());
-                                view.setEnabled(false);
-                                break;
-
-                            case "text":
-                                // this needs another parameter
-                                if(dataParts.length == 2) {
-                                    // the text can be set on switches and labels only
-                                    String text = dataParts[1].trim();
-                                    if(view instanceof TextView) ((TextView)view).setText(text);
-                                    if(view instanceof Switch)   ((Switch)view).setText(text);
-                                    if(view instanceof Button)   ((Button)view).setText(text);
-                                }
-                                break;
-
-                            case "switch":
-                                // this needs another parameter
-                                if(dataParts.length == 2) {
-                                    // only switches have a switch state
-                                    boolean on = dataParts[1].trim().equalsIgnoreCase("ON");
-                                    if(view instanceof SwitchCompat)
-                                        ((SwitchCompat)view).setChecked(on);
-                                }
-                                break;
-
-                            case "slider":
-                                // this needs another parameter
-                                if(dataParts.length == 2) {
-                                    // only switches have a switch state
-                                    int value = Integer.parseInt(dataParts[1].trim());
-                                    if(view instanceof SeekBar)
-                                        ((SeekBar)view).setProgress(value);
-                                }
-                                break;
-
-                            case "color":
-                                // color needs another parameter
-                                if(dataParts.length == 2) {
-                                    Integer c = null;
-                                    try {
-                                        String color = dataParts[1].trim();
-                                        c = Color.parseColor(color);
-                                    } catch(IllegalArgumentException e) { /*ignore */ }
-
-                                    if(c != null) {
-                                        if (view instanceof TextView) ((TextView) view).setTextColor(c);
-                                        if (view instanceof Switch)   ((Switch) view).setTextColor(c);
-                                        if (view instanceof Button)   ((Button) view).setTextColor(c);
-                                        if (view instanceof SeekBar)  ((SeekBar) view).getThumb().setTint(c);
-                                    }
-                                }
-                                break;
-
-                            case "bgcolor":
-                                // bgcolor needs another parameter
-                                if(dataParts.length == 2) {
-                                    Integer c = null;
-                                    try {
-                                        String color = dataParts[1].trim();
-                                        c = Color.parseColor(color);
-                                    } catch(IllegalArgumentException e) { /*ignore */ }
-
-                                    if(c != null) {
-                                        if (view instanceof TextView)
-                                            ((TextView) view).setBackgroundColor(c);
-                                        if (view instanceof Switch) {
-                                            // this doesn't restore the correct color
-//                                            ((Switch) view).getBackground().clearColorFilter();
-//                                            ((Switch) view).getBackground().setColorFilter(c, PorterDuff.Mode.MULTIPLY);
-                                            ((Switch) view).setBackgroundColor(c);
-                                        }
-                                        if (view instanceof Button) {
-//                                            ((Button) view).getBackground().clearColorFilter();
-//                                            ((Button) view).getBackground().setColorFilter(c, PorterDuff.Mode.MULTIPLY);
-                                            ((Button) view).setBackgroundColor(c);
-                                        }
-                                        if (view instanceof SeekBar)
-                                            ((SeekBar) view).setBackgroundColor(c);
-                                    }
-                                }
-                                break;
+    // messages received from the device are applied once per display frame
+    private final MessageCoalescer mCoalescer = new MessageCoalescer();
+    private final List<DeviceCommand> mFrameMessages = new ArrayList<>();
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mCoalescer.drainTo(mFrameMessages);
+            for (DeviceCommand cmd : mFrameMessages)
+                parseMessage(cmd);
+            mFrameMessages.clear();
+        }
+    };
 
-                            default:
-                                Log.w(TAG, "unexpected command: "+ cmd);
-                                break;
+    void parseMessage(DeviceCommand cmd) {
+        // try to find an item with this id
+        for (View view : mViews) {
+            if (view.getId() == cmd.id()) {
+                // use this to update views
+                switch (cmd.type()) {
+                    case ENABLE:
+                        Log.d(TAG, "Enable " + view.getId());
+                        view.setEnabled(true);
+                        break;
+
+                    case DISABLE:
+                        Log.d(TAG, "Disable " + view.getId());
+                        view.setEnabled(false);
+                        break;
+
+                    case TEXT:
+                        // the text can be set on switches and labels only
+                        if(view instanceof TextView) ((TextView)view).setText(cmd.text());
+                        if(view instanceof Switch)   ((Switch)view).setText(cmd.text());
+                        if(view instanceof Button)   ((Button)view).setText(cmd.text());
+                        break;
+
+                    case SWITCH:
+                        // only switches have a switch state
+                        if(view instanceof SwitchCompat)
+                            ((SwitchCompat)view).setChecked(cmd.on());
+                        break;
+
+                    case SLIDER:
+                        // only sliders have a slider value
+                        if(view instanceof SeekBar)
+                            ((SeekBar)view).setProgress(cmd.value());
+                        break;
+
+                    case COLOR:
+                        if (view instanceof TextView) ((TextView) view).setTextColor(cmd.color());
+                        if (view instanceof Switch)   ((Switch) view).setTextColor(cmd.color());
+                        if (view instanceof Button)   ((Button) view).setTextColor(cmd.color());
+                        if (view instanceof SeekBar)  ((SeekBar) view).getThumb().setTint(cmd.color());
+                        break;
+
+                    case BGCOLOR:
+                        if (view instanceof TextView)
+                            ((TextView) view).setBackgroundColor(cmd.color());
+                        if (view instanceof Switch) {
+                            // this doesn't restore the correct color
+//                            ((Switch) view).getBackground().clearColorFilter();
+//                            ((Switch) view).getBackground().setColorFilter(c, PorterDuff.Mode.MULTIPLY);
+                            ((Switch) view).setBackgroundColor(cmd.color());
                         }
-                    }
+                        if (view instanceof Button) {
+//                            ((Button) view).getBackground().clearColorFilter();
+//                            ((Button) view).getBackground().setColorFilter(c, PorterDuff.Mode.MULTIPLY);
+                            ((Button) view).setBackgroundColor(cmd.color());
+                        }
+                        if (view instanceof SeekBar)
+                            ((SeekBar) view).setBackgroundColor(cmd.color());
+                        break;
+
+                    default:
+                        Log.w(TAG, "unexpected command: "+ cmd.name());
+                        break;
                 }
-            } catch (NumberFormatException e) {
-                // don't do anything ...
             }
         }
     }
@@ -187,24 +161,6 @@ public class ControlActivity extends AppCompatActivity {
         @Override
         public void onReceive(Context context, Intent intent) {
             switch (Objects.requireNonNull(intent.getAction())) {
-                // Hm10 service reports that the connection to the target device has been lost
-                case Hm10Service.ACTION_DISCONNECTED:
-                    // take action if we haven't triggerend the disconnection ourselves
-                    if (!mInitiatedDisconnection) {
-                        Toast.makeText(ControlActivity.this, getString(R.string.con_lost), Toast.LENGTH_LONG).show();
-                        Log.w(TAG, "Lost connection to client!");
-                        finish();
-                    }
-                    break;
-
-                // Hm10 service reports that a message has been received
-                case Hm10Service.ACTION_NOTIFY_MESSAGE:
-                    String cmd = intent.getStringExtra("cmd");
-                    String data = intent.getStringExtra("data");
-                    if (cmd != null && data != null)
-                        parseMessage(cmd, data);
-                    break;
-
                 // Hm10 service reports that it's about to be gone ...
                 case Hm10Service.ACTION_NOTIFY_DESTROYED:
                     Log.w(TAG, "Hm10 service will be gone");
@@ -214,6 +170,107 @@ public class ControlActivity extends AppCompatActivity {
         }
     };
 
+    // Hm10 service reports that the connection to the target device has been lost
+    private final EventBus.Subscriber<EventBus.Disconnected> mDisconnectedSubscriber =
+            new EventBus.Subscriber<EventBus.Disconnected>() {
+        @Override
+        public void onEvent(EventBus.Disconnected event) {
+            // the items of further devices just stop working
+            if (event.device != null) {
+                Toast.makeText(ControlActivity.this, getString(R.string.device_lost, event.device), Toast.LENGTH_LONG).show();
+                Log.w(TAG, "Lost connection to " + event.device);
+                return;
+            }
+
+            // take action if we haven't triggerend the disconnection ourselves
+            if (!mInitiatedDisconnection) {
+                Toast.makeText(ControlActivity.this, getString(R.string.con_lost), Toast.LENGTH_LONG).show();
+                Log.w(TAG, "Lost connection to client!");
+                finish();
+            }
+        }
+    };
+
+    // Hm10 service reports that the link has been lost and is being restored.
+    // The controls stay where they are but are dimmed until it's back
+    private final EventBus.Subscriber<EventBus.Reconnecting> mReconnectingSubscriber =
+            new EventBus.Subscriber<EventBus.Reconnecting>() {
+        @Override
+        public void onEvent(EventBus.Reconnecting event) {
+            Log.w(TAG, "Reconnecting to " + (event.device != null ? event.device : "client"));
+            if (event.device != null)
+                return;
+
+            showReconnecting(true);
+        }
+    };
+
+    // the device has been reconnected and may have missed some messages, so it's
+    // asked for its state again
+    private final EventBus.Subscriber<EventBus.Reconnected> mReconnectedSubscriber =
+            new EventBus.Subscriber<EventBus.Reconnected>() {
+        @Override
+        public void onEvent(EventBus.Reconnected event) {
+            Log.i(TAG, "Reconnected to " + (event.device != null ? event.device : "client"));
+            sendMessage(ControlEvent.text("STATE").to(event.device));
+            if (event.device != null)
+                return;
+
+            showReconnecting(false);
+        }
+    };
+
+    private void showReconnecting(boolean reconnecting) {
+        mRelativeLayout.setAlpha(reconnecting ? 0.5f : 1.0f);
+        if (getSupportActionBar() != null) {
+            if (reconnecting) getSupportActionBar().setSubtitle(R.string.reconnecting);
+            else              getSupportActionBar().setSubtitle(null);
+        }
+    }
+
+    // Hm10 service reports that a message has been received
+    private final EventBus.Subscriber<EventBus.DeviceMessage> mMessageSubscriber =
+            new EventBus.Subscriber<EventBus.DeviceMessage>() {
+        @Override
+        public void onEvent(EventBus.DeviceMessage event) {
+            // elements only accept messages from the device they belong to
+            DeviceCommand cmd = event.command;
+            if ((cmd.id() >= 0) && !Objects.equals(cmd.device(), mItemDevices.get(cmd.id())))
+                return;
+
+            if (mCoalescer.add(cmd))
+                Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    };
+
+    // the Hm10Service once bound to it. Until then requests and messages
+    // are sent the indirect way. Device messages are received once bound
+    private Hm10Service.LocalBinder mService = null;
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            Log.d(TAG, "service bound");
+            mService = (Hm10Service.LocalBinder) service;
+            mService.subscribe(mMessageSubscriber, getMainLooper());
+
+            // the link may have been lost before this activity was started
+            if (mService.getState() == ConnectionStateMachine.State.RECONNECTING)
+                showReconnecting(true);
+
+            // the service usually has parsed the layout already. If it has been
+            // created anew or the id is missing, the xml is parsed here instead
+            if ((mLayout == null) && (mXml != null))
+                showLayout(mService.layout(getIntent().getIntExtra("layout_id", -1)));
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            Log.d(TAG, "service unbound");
+            mService.unsubscribe(mMessageSubscriber);
+            mService = null;
+        }
+    };
+
     void sendRequest(String s) {
         Log.d(TAG, "sendRequest(" + s + ")");
         Intent intent = new Intent();
@@ -221,11 +278,18 @@ public class ControlActivity extends AppCompatActivity {
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
     }
 
-    private void sendMessage(String msg) {
-        Intent i = new Intent();
-        i.setAction(Hm10Service.ACTION_SEND_MESSAGE);
-        i.putExtra("message", msg);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(i);
+    private void requestDisconnect() {
+        if(mService != null) mService.disconnect();
+        else                 sendRequest(Hm10Service.ACTION_DISCONNECT);
+    }
+
+    private void sendMessage(ControlEvent event) {
+        // events of items on further devices are sent there
+        if((event.device() == null) && mItemDevices.containsKey(event.id()))
+            event = event.to(mItemDevices.get(event.id()));
+
+        if(mService != null) mService.send(event);
+        else                 EventBus.getDefault().post(new EventBus.SendMessage(event));
     }
 
     // this is called whenever the Activity is destroyed. This even happens if the user
@@ -235,6 +299,14 @@ public class ControlActivity extends AppCompatActivity {
         Log.w(TAG, "destroy");
         super.onDestroy();
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mHm10ServiceReceiver);
+        if(mService != null) mService.unsubscribe(mMessageSubscriber);
+        unbindService(mServiceConnection);
+        mService = null;
+        EventBus.getDefault().unregister(mDisconnectedSubscriber);
+        EventBus.getDefault().unregister(mReconnectingSubscriber);
+        EventBus.getDefault().unregister(mReconnectedSubscriber);
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        Log.d(TAG, "Device messages " + mCoalescer);
 
         if(mSensorManager != null)
             mSensorManager.unregisterListener(mEventListener);
@@ -267,11 +339,11 @@ public class ControlActivity extends AppCompatActivity {
                 switch(event.getAction()) {
                     case MotionEvent.ACTION_DOWN:
                         // PRESSED
-                        sendMessage("BUTTON " + b.id() + " DOWN");
+                        sendMessage(ControlEvent.button(b.id(), true));
                         return true; // if you want to handle the touch event
                     case MotionEvent.ACTION_UP:
                         // RELEASED
-                        sendMessage("BUTTON " + b.id() + " UP");
+                        sendMessage(ControlEvent.button(b.id(), false));
                         return true; // if you want to handle the touch event
                 }
                 return false;
@@ -296,7 +368,7 @@ public class ControlActivity extends AppCompatActivity {
         sw.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                sendMessage("SWITCH " + s.id() + " " + (isChecked ? "ON" : "OFF"));
+                sendMessage(ControlEvent.switchState(s.id(), isChecked));
             }
         });
 
@@ -342,13 +414,15 @@ public class ControlActivity extends AppCompatActivity {
         joystick.setId(j.id());
         joystick.setEnabled(j.enabled());
 
-        // if a size has been given it overwrites width and height
+        // if a size has been given it overwrites width and height. The
+        // parameters are a copy, so they have to be fetched only once
+        RelativeLayout.LayoutParams params = j.layoutParams();
         if(j.size() != null) {
-            j.layoutParams().height = j.size();
-            j.layoutParams().width = j.size();
+            params.height = j.size();
+            params.width = j.size();
         }
 
-        joystick.setLayoutParams(j.layoutParams());
+        joystick.setLayoutParams(params);
         if (j.color() != null) joystick.setButtonColor(j.color());
         if (j.bgcolor() != null) joystick.setBackgroundColor(j.bgcolor());
 
@@ -375,7 +449,7 @@ public class ControlActivity extends AppCompatActivity {
                     x = (int)(result[0] * 100);
                     y = (int)(result[1] * 100);
                 }
-                sendMessage("JOYSTICK " + j.id() + " " + x + " " + y);
+                sendMessage(ControlEvent.joystick(j.id(), x, y));
             }
         }, 200);
 
@@ -468,7 +542,7 @@ public class ControlActivity extends AppCompatActivity {
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
-                sendMessage("SLIDER " + s.id() + " " + value);
+                sendMessage(ControlEvent.slider(s.id(), value));
             }
         });
 
@@ -484,7 +558,7 @@ public class ControlActivity extends AppCompatActivity {
 
         // request disconnection
         mInitiatedDisconnection = true;
-        sendRequest(Hm10Service.ACTION_DISCONNECT);
+        requestDisconnect();
 
         super.onBackPressed();
     }
@@ -634,12 +708,17 @@ public class ControlActivity extends AppCompatActivity {
             return true;
         }
 
+        if(item.getItemId() == R.id.latency) {
+            showLatency();
+            return true;
+        }
+
         if(item.getItemId() == android.R.id.home) {
             Log.d(TAG, "user actionbar back");
 
             // request disconnection
             mInitiatedDisconnection = true;
-            sendRequest(Hm10Service.ACTION_DISCONNECT);
+            requestDisconnect();
 
             finish();
             return true;
@@ -647,6 +726,39 @@ public class ControlActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    // show the latencies of the messages sent so far and allow to export them
+    private void showLatency() {
+        AlertDialog alertDialog = new AlertDialog.Builder(this).create();
+        alertDialog.setTitle(getString(R.string.latency_title));
+
+        String report = LatencyStats.getDefault().report();
+        alertDialog.setMessage(report.isEmpty() ? getString(R.string.latency_none) : report);
+
+        alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL, getString(R.string.ok),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.dismiss();
+                    }
+                });
+        alertDialog.setButton(AlertDialog.BUTTON_NEGATIVE, getString(R.string.latency_reset),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        LatencyStats.getDefault().reset();
+                    }
+                });
+        alertDialog.setButton(AlertDialog.BUTTON_POSITIVE, getString(R.string.latency_share),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        Intent intent = new Intent(Intent.ACTION_SEND);
+                        intent.setType("text/csv");
+                        intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.latency_title));
+                        intent.putExtra(Intent.EXTRA_TEXT, LatencyStats.getDefault().csv());
+                        startActivity(Intent.createChooser(intent, getString(R.string.latency_share)));
+                    }
+                });
+        alertDialog.show();
+    }
+
     private LayoutXmlParser.Layout parse(String xml) {
         LayoutXmlParser parser = new LayoutXmlParser();
 
@@ -675,6 +787,9 @@ public class ControlActivity extends AppCompatActivity {
             LayoutXmlParser.Item item = mLayout.items().get(i);
             View view = null;
 
+            if (item.device() != null)
+                mItemDevices.put(item.id(), item.device());
+
             if (item instanceof LayoutXmlParser.Button)
                 view = addButton((LayoutXmlParser.Button) item);
 
@@ -700,21 +815,23 @@ public class ControlActivity extends AppCompatActivity {
 
     private void setFilters() {
         IntentFilter filter = new IntentFilter();
-        filter.addAction(Hm10Service.ACTION_DISCONNECTED);
-        filter.addAction(Hm10Service.ACTION_NOTIFY_MESSAGE);
         filter.addAction(Hm10Service.ACTION_NOTIFY_DESTROYED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mHm10ServiceReceiver, filter);
+
+        EventBus.getDefault().register(EventBus.Disconnected.class, mDisconnectedSubscriber, getMainLooper());
+        EventBus.getDefault().register(EventBus.Reconnecting.class, mReconnectingSubscriber, getMainLooper());
+        EventBus.getDefault().register(EventBus.Reconnected.class, mReconnectedSubscriber, getMainLooper());
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         Log.d(TAG, "onCreateOptionsMenu()");
 
-        // add the menu only if running the demo
-        if(mIsDemo) {
-            MenuInflater inflater = getMenuInflater();
-            inflater.inflate(R.menu.control_menu, menu);
-        }
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.control_menu, menu);
+
+        // the xml source is only shown when running the demo
+        menu.findItem(R.id.show_xml).setVisible(mIsDemo);
 
         return true;
     }
@@ -793,7 +910,7 @@ public class ControlActivity extends AppCompatActivity {
                                         ((SeekBar) view).setProgress(angle);
 
                                         // send the value
-                                        sendMessage("SLIDER " + slider.id() + " " + angle);
+                                        sendMessage(ControlEvent.slider(slider.id(), angle));
                                     }
                                 }
                             }
@@ -822,17 +939,29 @@ public class ControlActivity extends AppCompatActivity {
         setFilters();  // Start listening to broadcast notifications e.g. from Hm10Service
 
         // Get the Intent that started this activity and extract xml layout
-        // and parse it into a physical layout
         Intent intent = getIntent();
         mIsDemo = intent.getBooleanExtra("demo", false);
         mXml = intent.getStringExtra("layout");
-        if(mXml != null) {
-            mLayout = parse(mXml);
-            assembleLayout();
 
-            // finally request state
-            sendMessage("STATE");
-        }
+        // the service has been started by the ScanActivity already. Bind to it for
+        // direct access. It then also provides the layout it has parsed. The
+        // service is created again if it's gone meanwhile, so the binding always
+        // completes. The layout is parsed here if the service doesn't have it
+        if (!bindService(new Intent(this, Hm10Service.class), mServiceConnection, BIND_AUTO_CREATE) && (mXml != null))
+            showLayout(null);
+    }
+
+    // build the views of a layout, the one parsed from the xml if it's null
+    private void showLayout(LayoutXmlParser.Layout layout) {
+        mLayout = (layout != null) ? layout : parse(mXml);
+        if (mLayout == null)
+            return;
+        assembleLayout();
+
+        // finally request state from all devices
+        sendMessage(ControlEvent.text("STATE"));
+        for (String device : mLayout.devices())
+            sendMessage(ControlEvent.text("STATE").to(device));
 
         // check if sensores are used in this layout
         if(mSensors.size() > 0) {
@@ -0,0 +1,100 @@
+package org.harbaum.ftduinoblue;
+
+// A message sent from the control screen to the device.
+//
+// Input events of the control elements are kept typed until they are sent, so
+// the Hm10Service can pick the framing the device understands. Everything else,
+// e.g. the STATE request, is sent as plain text.
+//
+// Events are sent to the device the layout came from unless they are addressed
+// to another device.
+public class ControlEvent {
+    public enum Type { BUTTON, SWITCH, SLIDER, JOYSTICK, TEXT }
+
+    private final Type mType;
+    private final int mId;
+    private final int mX;      // button/switch state, slider value or joystick x
+    private final int mY;      // joystick y
+    private final String mText;
+    private final long mCreated;   // System.nanoTime() of the user input
+    private final String mDevice;  // address of the receiving device or null
+
+    private ControlEvent(Type type, int id, int x, int y, String text, long created, String device) {
+        mType = type;
+        mId = id;
+        mX = x;
+        mY = y;
+        mText = text;
+        mCreated = created;
+        mDevice = device;
+    }
+
+    private ControlEvent(Type type, int id, int x, int y, String text) {
+        this(type, id, x, y, text, System.nanoTime(), null);
+    }
+
+    public static ControlEvent button(int id, boolean down) {
+        return new ControlEvent(Type.BUTTON, id, down ? 1 : 0, 0, null);
+    }
+
+    public static ControlEvent switchState(int id, boolean on) {
+        return new ControlEvent(Type.SWITCH, id, on ? 1 : 0, 0, null);
+    }
+
+    public static ControlEvent slider(int id, int value) {
+        return new ControlEvent(Type.SLIDER, id, value, 0, null);
+    }
+
+    public static ControlEvent joystick(int id, int x, int y) {
+        return new ControlEvent(Type.JOYSTICK, id, x, y, null);
+    }
+
+    public static ControlEvent text(String text) {
+        return new ControlEvent(Type.TEXT, -1, 0, 0, text);
+    }
+
+    public Type type() { return mType; }
+    public int id() { return mId; }
+    public boolean on() { return mX != 0; }
+    public int value() { return mX; }
+    public int x() { return mX; }
+    public int y() { return mY; }
+    public long created() { return mCreated; }
+    public String device() { return mDevice; }
+
+    // the same event addressed to another device. A null device is the one
+    // the layout came from
+    public ControlEvent to(String device) {
+        if ((device == null) ? (mDevice == null) : device.equals(mDevice))
+            return this;
+        return new ControlEvent(mType, mId, mX, mY, mText, mCreated, device);
+    }
+
+    // sliders and joysticks report their position again and again while being
+    // moved. Only the latest position of those is of interest
+    public boolean isContinuous() {
+        return (mType == Type.SLIDER) || (mType == Type.JOYSTICK);
+    }
+
+    // true if the other event reports the same value for the same element
+    public boolean sameValue(ControlEvent other) {
+        return (other != null) && (mType == other.mType) && (mId == other.mId) &&
+                (mX == other.mX) && (mY == other.mY);
+    }
+
+    // the message in the text protocol
+    public String toText() {
+        switch (mType) {
+            case BUTTON:   return "BUTTON " + mId + (on() ? " DOWN" : " UP");
+            case SWITCH:   return "SWITCH " + mId + (on() ? " ON" : " OFF");
+            case SLIDER:   return "SLIDER " + mId + " " + mX;
+            case JOYSTICK: return "JOYSTICK " + mId + " " + mX + " " + mY;
+            default:       return mText;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+}
@@ -0,0 +1,91 @@
+package org.harbaum.ftduinoblue;
+
+// A command received from the device with its arguments already parsed into
+// typed values. Which of the values are valid depends on the type of command.
+//
+// Commands are passed between threads and are thus immutable. They are
+// assembled by a Builder.
+public class DeviceCommand {
+    public enum Type {
+        VERSION, LAYOUT, LAYOUTHASH, TEXT, COLOR, BGCOLOR, SWITCH, SLIDER, ENABLE, DISABLE, UNKNOWN
+    }
+
+    private final Type mType;
+    private final String mName;
+    private final int mId;
+    private final int mValue;        // slider value or color
+    private final boolean mOn;       // switch state
+    private final String mText;
+    private final String mDevice;    // address of the sending device unless it's the primary one
+
+    private DeviceCommand(Type type, String name, int id, int value, boolean on, String text, String device) {
+        mType = type;
+        mName = name;
+        mId = id;
+        mValue = value;
+        mOn = on;
+        mText = text;
+        mDevice = device;
+    }
+
+    // collects the values of a command while its arguments are being parsed.
+    // A builder can be reset and used for the next command
+    public static class Builder {
+        private Type mType;
+        private String mName;
+        private int mId;
+        private int mValue;
+        private boolean mOn;
+        private String mText;
+        private String mDevice;
+
+        public Builder(Type type, String name) {
+            reset(type, name);
+        }
+
+        public Builder reset(Type type, String name) {
+            mType = type;
+            mName = name;
+            mId = -1;
+            mValue = 0;
+            mOn = false;
+            mText = null;
+            mDevice = null;
+            return this;
+        }
+
+        public Builder id(int id) { mId = id; return this; }
+        public Builder value(int value) { mValue = value; return this; }
+        public Builder on(boolean on) { mOn = on; return this; }
+        public Builder text(String text) { mText = text; return this; }
+        public Builder device(String device) { mDevice = device; return this; }
+
+        public DeviceCommand build() {
+            return new DeviceCommand(mType, mName, mId, mValue, mOn, mText, mDevice);
+        }
+    }
+
+    public Type type() { return mType; }
+    public String name() { return mName; }
+    public int id() { return mId; }
+    public int value() { return mValue; }
+    public int color() { return mValue; }
+    public boolean on() { return mOn; }
+    public String text() { return mText; }
+    public String device() { return mDevice; }
+
+    // the same command as sent by the given device
+    public DeviceCommand from(String device) {
+        if ((device == null) ? (mDevice == null) : device.equals(mDevice))
+            return this;
+        return new DeviceCommand(mType, mName, mId, mValue, mOn, mText, device);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(mName);
+        if (mId >= 0) sb.append(' ').append(mId);
+        if (mText != null) sb.append(' ').append(mText);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,196 @@
+package org.harbaum.ftduinoblue;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// A typed publish/subscribe bus connecting the Hm10Service and the activities.
+//
+// Events are plain objects and subscribers register for an event class. Posting
+// looks up the subscribers of exactly that class and either calls them directly
+// on the posting thread or hands the event to the looper the subscriber asked
+// for. Unlike local broadcasts there's no intent to build, no extras to copy
+// and no intent filter matching, and posting doesn't allocate anything but the
+// event itself.
+public class EventBus {
+    private static final EventBus sDefault = new EventBus();
+
+    public interface Subscriber<T> {
+        void onEvent(T event);
+    }
+
+    // the device found while scanning
+    public static class DeviceFound {
+        public final String name;
+        public final String address;
+
+        public DeviceFound(String name, String address) {
+            this.name = name;
+            this.address = address;
+        }
+    }
+
+    // the layout of the connected device has been received and verified. The
+    // parsed layout is never modified and may be used by several views
+    public static class Layout {
+        public final int id;
+        public final String xml;
+        public final LayoutXmlParser.Layout layout;
+        public final boolean demo;
+
+        public Layout(int id, String xml, LayoutXmlParser.Layout layout, boolean demo) {
+            this.id = id;
+            this.xml = xml;
+            this.layout = layout;
+            this.demo = demo;
+        }
+    }
+
+    // a message has been received from one of the connected devices
+    public static class DeviceMessage {
+        public final DeviceCommand command;
+
+        public DeviceMessage(DeviceCommand command) {
+            this.command = command;
+        }
+    }
+
+    // a message is to be sent to the connected device
+    public static class SendMessage {
+        public final ControlEvent control;
+
+        public SendMessage(ControlEvent control) {
+            this.control = control;
+        }
+    }
+
+    // the connection to a device has been closed or lost. The device is null
+    // for the one the layout came from
+    public static class Disconnected {
+        public final String device;
+
+        public Disconnected() {
+            this(null);
+        }
+
+        public Disconnected(String device) {
+            this.device = device;
+        }
+    }
+
+    // the link to a device has been lost and is being established again.
+    // Messages sent meanwhile are dropped. The device is null for the one the
+    // layout came from
+    public static class Reconnecting {
+        public final String device;
+
+        public Reconnecting(String device) {
+            this.device = device;
+        }
+    }
+
+    // the link to a device is back after it had been lost
+    public static class Reconnected {
+        public final String device;
+
+        public Reconnected(String device) {
+            this.device = device;
+        }
+    }
+
+    private static class Registration implements Handler.Callback {
+        final Subscriber<Object> subscriber;
+        final Handler handler;    // null for delivery on the posting thread
+
+        // cleared by unregister. A post may still be using the registration
+        // or may have queued an event for the looper meanwhile
+        volatile boolean active = true;
+
+        @SuppressWarnings("unchecked")
+        Registration(Subscriber<?> subscriber, Looper looper) {
+            this.subscriber = (Subscriber<Object>) subscriber;
+            this.handler = (looper != null) ? new Handler(looper, this) : null;
+        }
+
+        void deliver(Object event) {
+            if (!active)
+                return;
+            if (handler == null)
+                subscriber.onEvent(event);
+            else
+                handler.sendMessage(handler.obtainMessage(0, event));
+        }
+
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (active)
+                subscriber.onEvent(msg.obj);
+            return true;
+        }
+    }
+
+    private static final Registration[] NONE = new Registration[0];
+
+    // the subscribers per event class. The arrays are never modified but replaced,
+    // so posting can iterate them without locking or allocating an iterator
+    private final ConcurrentHashMap<Class<?>, Registration[]> mSubscribers = new ConcurrentHashMap<>();
+
+    public static EventBus getDefault() {
+        return sDefault;
+    }
+
+    // subscribe to events of the given class. The subscriber is called on the
+    // thread of the given looper or directly on the posting thread if it's null
+    public synchronized <T> void register(Class<T> type, Subscriber<? super T> subscriber, Looper looper) {
+        Registration[] old = mSubscribers.get(type);
+        if (old == null) old = NONE;
+
+        Registration[] regs = new Registration[old.length + 1];
+        System.arraycopy(old, 0, regs, 0, old.length);
+        regs[old.length] = new Registration(subscriber, looper);
+        mSubscribers.put(type, regs);
+    }
+
+    // remove the subscriber from all event classes it was registered for. Events
+    // already queued for its looper are dropped as well, so a subscriber that
+    // unregisters on the thread of its looper never sees another event
+    public synchronized void unregister(Subscriber<?> subscriber) {
+        for (Class<?> type : mSubscribers.keySet()) {
+            Registration[] old = mSubscribers.get(type);
+            int keep = 0;
+            for (Registration reg : old)
+                if (reg.subscriber != subscriber) keep++;
+            if (keep == old.length)
+                continue;
+
+            Registration[] regs = new Registration[keep];
+            keep = 0;
+            for (Registration reg : old) {
+                if (reg.subscriber != subscriber)
+                    regs[keep++] = reg;
+                else {
+                    reg.active = false;
+                    if (reg.handler != null)
+                        reg.handler.removeMessages(0);
+                }
+            }
+
+            if (regs.length > 0) mSubscribers.put(type, regs);
+            else                 mSubscribers.remove(type);
+        }
+    }
+
+    // deliver the event to all subscribers of its class. Returns false if
+    // there are none
+    public boolean post(Object event) {
+        Registration[] regs = mSubscribers.get(event.getClass());
+        if (regs == null)
+            return false;
+
+        for (int i = 0; i < regs.length; i++)
+            regs[i].deliver(event);
+        return true;
+    }
+}
@@ -0,0 +1,141 @@
+package org.harbaum.ftduinoblue;
+
+// Validates and decodes the lines handed out by the LineAssembler.
+//
+// Every line sent by the device ends with a ':' followed by two hex digits
+// carrying the sum of all non-control bytes before the ':'. The checksum is
+// verified directly on the line view and the payload in front of it is decoded
+// from UTF-8 into a char buffer that is reused for every line. The decoder
+// itself is the CharSequence giving access to the payload of the last frame,
+// so nothing is allocated for a valid frame once the buffer has reached the
+// size of the longest line.
+public class FrameDecoder implements CharSequence {
+    private final static byte[] HEX_VALUE = new byte[256];
+    static {
+        for (int i = 0; i < 256; i++) HEX_VALUE[i] = -1;
+        for (int i = 0; i < 10; i++) HEX_VALUE['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUE['a' + i] = (byte) (10 + i);
+            HEX_VALUE['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private char[] mChars = new char[64];
+    private int mStart = 0;
+    private int mEnd = 0;
+
+    private int mFrames = 0;
+    private int mChecksumFailures = 0;
+    private int mMalformedFrames = 0;
+
+    // validate the current line of the assembler. Returns true if the line
+    // is a valid frame whose payload is now available via this CharSequence
+    public boolean decode(LineAssembler line) {
+        mStart = mEnd = 0;
+        int length = line.lineLength();
+
+        // third last byte should be ':' followed by a hex checksum byte
+        if ((length <= 3) || (line.lineByteAt(length - 3) != ':')) {
+            mMalformedFrames++;
+            return false;
+        }
+
+        int high = HEX_VALUE[line.lineByteAt(length - 2) & 0xff];
+        int low = HEX_VALUE[line.lineByteAt(length - 1) & 0xff];
+        if ((high < 0) || (low < 0)) {
+            mMalformedFrames++;
+            return false;
+        }
+
+        // calculate checksum, control characters are not included
+        int payload = length - 3;
+        int sum = 0;
+        for (int i = 0; i < payload; i++) {
+            int b = line.lineByteAt(i) & 0xff;
+            if (b >= 32) sum += b;
+        }
+
+        if ((sum & 0xff) != 16 * high + low) {
+            mChecksumFailures++;
+            return false;
+        }
+
+        decodeUtf8(line, payload);
+        trim();
+        mFrames++;
+        return true;
+    }
+
+    private void decodeUtf8(LineAssembler line, int length) {
+        // a byte never decodes into more than one char
+        if (mChars.length < length)
+            mChars = new char[Math.max(length, 2 * mChars.length)];
+
+        int n = 0;
+        int i = 0;
+        while (i < length) {
+            int b = line.lineByteAt(i++) & 0xff;
+            if (b < 0x80) {
+                mChars[n++] = (char) b;
+                continue;
+            }
+
+            // number of continuation bytes and the payload bits of the lead byte
+            int more, cp;
+            if ((b & 0xe0) == 0xc0)      { more = 1; cp = b & 0x1f; }
+            else if ((b & 0xf0) == 0xe0) { more = 2; cp = b & 0x0f; }
+            else if ((b & 0xf8) == 0xf0) { more = 3; cp = b & 0x07; }
+            else { mChars[n++] = '\ufffd'; continue; }
+
+            boolean valid = i + more <= length;
+            for (int k = 0; valid && k < more; k++) {
+                int c = line.lineByteAt(i) & 0xff;
+                if ((c & 0xc0) != 0x80) valid = false;
+                else { cp = (cp << 6) | (c & 0x3f); i++; }
+            }
+
+            if (!valid)
+                mChars[n++] = '\ufffd';
+            else if (cp >= 0x10000) {
+                // four byte sequences need a surrogate pair but also
+                // occupy four bytes, so there's always room for it
+                cp -= 0x10000;
+                mChars[n++] = (char) (0xd800 + (cp >> 10));
+                mChars[n++] = (char) (0xdc00 + (cp & 0x3ff));
+            } else
+                mChars[n++] = (char) cp;
+        }
+        mEnd = n;
+    }
+
+    // remove leading and trailing whitespace like String.trim() does
+    private void trim() {
+        while ((mStart < mEnd) && (mChars[mStart] <= ' ')) mStart++;
+        while ((mEnd > mStart) && (mChars[mEnd - 1] <= ' ')) mEnd--;
+    }
+
+    @Override
+    public int length() {
+        return mEnd - mStart;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return mChars[mStart + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(mChars, mStart + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mChars, mStart, mEnd - mStart);
+    }
+
+    // number of valid frames decoded
+    public int frames() { return mFrames; }
+    public int checksumFailures() { return mChecksumFailures; }
+    public int malformedFrames() { return mMalformedFrames; }
+}
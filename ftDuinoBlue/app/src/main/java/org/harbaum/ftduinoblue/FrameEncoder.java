@@ -0,0 +1,146 @@
+package org.harbaum.ftduinoblue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Encodes messages sent to the device in the text protocol. Every message is
+// terminated by a colon, a two digit hex checksum and a newline.
+//
+// An encoder writes the messages straight into a buffer it reuses for every
+// message and sums up the checksum while doing so. Control events are encoded
+// without building a string first, so sending slider and joystick updates
+// doesn't allocate anything. The buffer only grows for unusually long text
+// messages.
+public class FrameEncoder {
+    private final static byte[] HEX = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+    private final static byte[] BUTTON = ascii("BUTTON ");
+    private final static byte[] SWITCH = ascii("SWITCH ");
+    private final static byte[] SLIDER = ascii("SLIDER ");
+    private final static byte[] JOYSTICK = ascii("JOYSTICK ");
+    private final static byte[] DOWN = ascii(" DOWN");
+    private final static byte[] UP = ascii(" UP");
+    private final static byte[] ON = ascii(" ON");
+    private final static byte[] OFF = ascii(" OFF");
+
+    private byte[] mBuffer;
+    private int mLength = 0;
+    private int mChecksum = 0;
+
+    public FrameEncoder() {
+        this(64);
+    }
+
+    public FrameEncoder(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static byte[] appendChecksumAndNl(String s) {
+        FrameEncoder encoder = new FrameEncoder(s.length() + 4);
+        int length = encoder.encode(s);
+        return Arrays.copyOf(encoder.buffer(), length);
+    }
+
+    // the buffer the last message has been encoded into. It's only valid until
+    // the next message is encoded, since encoding may replace it by a larger one
+    public byte[] buffer() {
+        return mBuffer;
+    }
+
+    // encode a control event. Returns the length of the message in buffer()
+    public int encode(ControlEvent event) {
+        mLength = mChecksum = 0;
+        switch (event.type()) {
+            case BUTTON:
+                put(BUTTON);
+                put(event.id());
+                put(event.on() ? DOWN : UP);
+                break;
+            case SWITCH:
+                put(SWITCH);
+                put(event.id());
+                put(event.on() ? ON : OFF);
+                break;
+            case SLIDER:
+                put(SLIDER);
+                put(event.id());
+                put((byte) ' ');
+                put(event.value());
+                break;
+            case JOYSTICK:
+                put(JOYSTICK);
+                put(event.id());
+                put((byte) ' ');
+                put(event.x());
+                put((byte) ' ');
+                put(event.y());
+                break;
+            default:
+                return encode(event.toText());
+        }
+        return finish();
+    }
+
+    // encode a text message. Returns the length of the message in buffer()
+    public int encode(String s) {
+        mLength = mChecksum = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // only the rare non-ascii messages need a conversion
+                put(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                break;
+            }
+            put((byte) c);
+        }
+        return finish();
+    }
+
+    private int finish() {
+        int checksum = mChecksum & 0xff;
+        put((byte) ':');
+        put(HEX[checksum >> 4]);
+        put(HEX[checksum & 15]);
+        put((byte) '\n');
+        return mLength;
+    }
+
+    private void put(byte b) {
+        if (mLength == mBuffer.length)
+            mBuffer = Arrays.copyOf(mBuffer, 2 * mBuffer.length + 4);
+        mBuffer[mLength++] = b;
+        mChecksum += b & 0xff;
+    }
+
+    private void put(byte[] bytes) {
+        for (byte b : bytes)
+            put(b);
+    }
+
+    // write a number in decimal
+    private void put(int value) {
+        long v = value;      // long, so the smallest int can be negated
+        if (v < 0) {
+            put((byte) '-');
+            v = -v;
+        }
+
+        int start = mLength;
+        do {
+            put((byte) ('0' + (v % 10)));
+            v /= 10;
+        } while (v != 0);
+
+        // the digits have been written least significant first
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            byte b = mBuffer[i];
+            mBuffer[i] = mBuffer[j];
+            mBuffer[j] = b;
+        }
+    }
+}
@@ -19,8 +19,12 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.os.ParcelUuid;
 import android.util.Log;
 import android.widget.Toast;
@@ -31,15 +35,16 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
@@ -48,7 +53,7 @@ import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_INDICATE;
 import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_NOTIFY;
 import static android.bluetooth.BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
 
-// A service that interacts with the BLE device via the Android BLE API.
+// A service that interacts with the BLE devices via the Android BLE API.
 public class Hm10Service extends Service {
     private final static String TAG = Hm10Service.class.getSimpleName();
     private final static String MIN_VERSION = "1.0.0";
@@ -84,27 +89,24 @@ public class Hm10Service extends Service {
 
     public final static String ACTION_START_SCAN = "org.harbaum.ftDuinoBlue.REQUEST_START_SCAN";
     public final static String ACTION_STOP_SCAN = "org.harbaum.ftDuinoBlue.REQUEST_STOP_SCAN";
-    public final static String ACTION_NOTIFY_DEVICE = "org.harbaum.ftDuinoBlue.DEVICE";
     public final static String ACTION_SETUP_DEMO = "org.harbaum.ftDuinoBlue.DEMO";
 
     public final static String ACTION_CONNECT = "org.harbaum.ftDuinoBlue.REQUEST_CONNECT";
     public final static String ACTION_DISCONNECT = "org.harbaum.ftDuinoBlue.REQUEST_DISCONNECT";
     public final static String ACTION_BLUETOOTH_ENABLED = "org.harbaum.ftDuinoBlue.BT_ENABLED";
-    public final static String ACTION_DISCONNECTED = "org.harbaum.ftDuinoBlue.DISCONNECTED";
     public final static String ACTION_NOTIFY_INFORMATION = "org.harbaum.ftDuinoBlue.INFO";
-    public final static String ACTION_NOTIFY_LAYOUT = "org.harbaum.ftDuinoBlue.NOTIFY_LAYOUT";
-    public final static String ACTION_SEND_MESSAGE = "org.harbaum.ftDuinoBlue.SEND_MESSAGE";
-    public final static String ACTION_NOTIFY_MESSAGE = "org.harbaum.ftDuinoBlue.NOTIFY_MESSAGE";
 
     private List<BluetoothDevice> mDevices;
+    private final RecentDevices mRecentDevices = new RecentDevices(RECENT_MAX);
+    private LayoutCache mLayoutCache;
 
     private BluetoothLeScanner mBluetoothLeScanner;
-    private BluetoothGatt mBluetoothGatt = null;
-    private BluetoothGattCharacteristic mUartCharacteristic = null;
+    private long mScanStarted = 0;   // uptime the scan for the next device started at
 
     private boolean mDemoEnabled = false;
 
-    private int mState = STATE_NONE;
+    // state of the service and the primary session
+    private volatile int mState = STATE_NONE;
     private static final int STATE_NONE = 0;
     private static final int STATE_INITIALIZING = 1;
     private static final int STATE_IDLE = 2;
@@ -113,15 +115,37 @@ public class Hm10Service extends Service {
     private static final int STATE_CONNECTED = 5;
     private static final int STATE_DISCONNECTING = 6;
 
-    private static String mPendingRequest = null;
-    private static int mRetryCounter = 0;
-    private static byte[] mIncomingBytes = new byte[]{};
-    private static Handler mHandler = new Handler();
-    private static Runnable mTimeout = null;
-    private static Runnable mSelfDestructTimeout = null;
-    private static byte[] mTransmitBuffer = null;
-    private static Boolean mTransmitInProgress = false;
-    private static Toast mCurrentToast = null;
+    // messages processed by the protocol worker
+    private static final int MSG_REQUEST = 1;
+    private static final int MSG_SCAN_RESULT = 2;
+    private static final int MSG_CONNECTION_STATE = 3;
+    private static final int MSG_SERVICES_DISCOVERED = 4;
+    private static final int MSG_RECEIVED = 5;
+    private static final int MSG_WRITTEN = 6;
+    private static final int MSG_DESCRIPTOR_WRITTEN = 7;
+    private static final int MSG_SHUTDOWN = 8;
+    private static final int MSG_SEND = 9;
+    private static final int MSG_MTU_CHANGED = 10;
+    private static final int MSG_DISCONNECT = 11;
+    private static final int MSG_CONNECT = 12;
+
+    // all protocol state below is owned by the protocol worker thread
+    private ProtocolWorker mWorker;
+    private final Map<String, Session> mSessions = new LinkedHashMap<>();   // by device address
+    private Session mPrimary = null;    // the session the layout came from
+    private int mNextSessionId = 0;
+    private int mNextLayoutId = 0;
+
+    // state of the primary session, also read by the activities
+    private volatile ConnectionStateMachine.State mPrimaryState = ConnectionStateMachine.State.IDLE;
+
+    // the layout of the current connection, also read by the activities
+    private volatile EventBus.Layout mLayout = null;
+
+    // main thread state
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Runnable mSelfDestructTimeout = null;
+    private Toast mCurrentToast = null;
 
     private final static UUID UUID_UART_SERVICE =
             UUID.fromString("0000FFE0-0000-1000-8000-00805F9B34FB");
@@ -130,97 +154,191 @@ public class Hm10Service extends Service {
     private final static UUID UUID_CCC_DESCRIPTOR =
             UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
+    // max bytes per write with the default ATT MTU of 23 bytes. Genuine HM-10
+    // modules don't support anything else
     private final static int MAX_MSG_LEN = 20;
 
+    // the largest MTU allowed by the spec. Other modules like the ESP32 accept
+    // larger MTUs and thus larger writes
+    private final static int REQUESTED_MTU = 517;
+    private final static long MTU_TIMEOUT = 1000;
+
+    // slider and joystick updates are held back while more than TX_HIGH_WATERMARK
+    // bytes are waiting in a lane until the backlog drops below TX_LOW_WATERMARK
+    // again
+    private final static int TX_HIGH_WATERMARK = 512;
+    private final static int TX_LOW_WATERMARK = 128;
+
+    // requests are sent again if there's no reply within the estimated
+    // retransmission timeout and the connection fails after REQUEST_TRIES attempts
+    private final static int REQUEST_TRIES = 5;
+
+    // the connection runs with high priority while messages are being exchanged
+    // and drops back to IDLE_PRIORITY after IDLE_TIMEOUT without any
+    private final static long IDLE_TIMEOUT = 5000;
+    private final static int IDLE_PRIORITY = ConnectionPriority.BALANCED;
+
+    // longer lines are dropped. This needs to fit the largest layout
+    private final static int MAX_LINE_LENGTH = 16384;
+
+    // max time to wait for the streaming parser once the layout is complete
+    private final static long LAYOUT_PARSE_TIMEOUT = 2000;
+
+    // a lost link is established again right away. Further attempts are made
+    // after RECONNECT_DELAY which doubles up to RECONNECT_MAX_DELAY until the
+    // deadline of the RECONNECTING state passes. With RECONNECT_AUTO_CONNECT
+    // Android waits for the device to show up instead, which saves power but
+    // usually takes several seconds
+    private final static long RECONNECT_DELAY = 200;
+    private final static long RECONNECT_MAX_DELAY = 2000;
+    private final static boolean RECONNECT_AUTO_CONNECT = false;
+
+    // the devices connected to recently are offered before a scan finds them
+    private final static String RECENT_PREFERENCES = "recent";
+    private final static String RECENT_DEVICES = "devices";
+    private final static int RECENT_MAX = 8;
+
+    // layouts received are kept, so they don't have to be transferred again
+    private final static String LAYOUT_CACHE_DIR = "layouts";
+    private final static long LAYOUT_CACHE_SIZE = 256 * 1024;
+
+    // Direct access for activities bound to the service. This saves them the
+    // broadcasts, which are still understood as well. All methods may be called
+    // from any thread. Requests are handed to the protocol worker as typed
+    // messages
+    public class LocalBinder extends Binder {
+        public void send(ControlEvent event) {
+            mWorker.send(MSG_SEND, event);
+        }
+
+        public void connect(String address) {
+            mWorker.send(MSG_CONNECT, address);
+        }
+
+        // disconnect from all devices
+        public void disconnect() {
+            mWorker.send(MSG_DISCONNECT);
+        }
+
+        // messages received from the device are delivered on the given looper
+        public void subscribe(EventBus.Subscriber<EventBus.DeviceMessage> subscriber, Looper looper) {
+            EventBus.getDefault().register(EventBus.DeviceMessage.class, subscriber, looper);
+        }
+
+        public void unsubscribe(EventBus.Subscriber<EventBus.DeviceMessage> subscriber) {
+            EventBus.getDefault().unregister(subscriber);
+        }
+
+        // the state of the connection to the device the layout came from,
+        // IDLE if there's none
+        public ConnectionStateMachine.State getState() {
+            return mPrimaryState;
+        }
+
+        public boolean isConnected() {
+            return mPrimaryState == ConnectionStateMachine.State.READY;
+        }
+
+        // the layout with the given id if it's the one of the current
+        // connection, null otherwise
+        public LayoutXmlParser.Layout layout(int id) {
+            EventBus.Layout layout = mLayout;
+            return ((layout != null) && (layout.id == id)) ? layout.layout : null;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
     @Override
-    public IBinder onBind(Intent intent) { return null; }
+    public IBinder onBind(Intent intent) { return mBinder; }
 
 
     private final BroadcastReceiver mActivityReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            switch (Objects.requireNonNull(intent.getAction())) {
-                case ACTION_START_SCAN:
-                    Log.d(TAG, "START SCAN");
-
-                    // send demo devices if demo is enabled
-                    if(mDemoEnabled) setupDemoDevices();
-
-                    if (getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
-                        // add devices that already are in current list
-                        for(BluetoothDevice dev: mDevices)
-                            sendDevice(dev);
-
-                        startScanning();
+            if (ACTION_NOTIFY_GONE.equals(intent.getAction())) {
+                Log.d(TAG, "MAIN GONE");
+
+                // the main app is potentially gone -> start 5 seconds self destruct timer
+                Log.d(TAG, "installing self destruct timer");
+                mHandler.postDelayed(mSelfDestructTimeout = new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.w(TAG, "SelfDestructTimeout fired!");
+                        stopSelf();
                     }
-                    break;
+                }, 2000);
+            } else
+                // everything else is handled by the protocol worker
+                mWorker.send(MSG_REQUEST, intent);
+        }
+    };
 
-                case ACTION_STOP_SCAN:
-                    Log.d(TAG, "STOP SCAN");
-                    stopScanning();
-                    break;
+    // messages to be sent to the device are passed to the worker right away
+    private final EventBus.Subscriber<EventBus.SendMessage> mSendSubscriber =
+            new EventBus.Subscriber<EventBus.SendMessage>() {
+        @Override
+        public void onEvent(EventBus.SendMessage event) {
+            mWorker.send(MSG_SEND, event.control);
+        }
+    };
 
-                case ACTION_CONNECT:
-                    String addr = intent.getStringExtra("addr");
-                    Log.d(TAG, "CONNECT: " + addr);
-                    connect(addr);
-                    break;
+    // handle a request sent by one of the activities
+    private void handleRequest(Intent intent) {
+        switch (Objects.requireNonNull(intent.getAction())) {
+            case ACTION_START_SCAN:
+                Log.d(TAG, "START SCAN");
 
-                case ACTION_DISCONNECT:
-                    Log.d(TAG, "DISCONNECT");
-                    // there should be a gatt instance. Otherwise it may have been a demo
-                    // device. So send "disconnected" in that case
-                    if(mBluetoothGatt == null) {
-                        Log.d(TAG, "No GATT connection: Demo disconnect");
-                        sendStatus(ACTION_DISCONNECTED);
-                    } else
-                        disconnect();
-                    break;
+                // send demo devices if demo is enabled
+                if(mDemoEnabled) setupDemoDevices();
 
-                case ACTION_BLUETOOTH_ENABLED:
-                    // we actually don't do anything here since the MainActivity will
-                    // next request location access by itself ...
-                    break;
+                if (getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
+                    // add devices used recently and those that already are in current list
+                    for(RecentDevices.Device dev: mRecentDevices.devices())
+                        sendDevice(dev.name, dev.address);
+                    for(BluetoothDevice dev: mDevices)
+                        sendDevice(dev);
 
-                case ACTION_LOCATION_OK:
-                    // location services are ok. Give Activity go for
-                    // further action
-                    mState = STATE_IDLE;
-                    sendStatus(ACTION_NOTIFY_INITIALIZED);
-                    break;
+                    startScanning();
+                }
+                break;
 
-                case ACTION_SEND_MESSAGE:
-                    String message = intent.getStringExtra("message");
-                    Log.d(TAG, "SEND MESSAGE: " + message);
-                    send(message);
-                    break;
+            case ACTION_STOP_SCAN:
+                Log.d(TAG, "STOP SCAN");
+                stopScanning();
+                break;
 
-                case ACTION_SETUP_DEMO:
-                    Log.d(TAG, "SETUP DEMO");
-                    mDemoEnabled = true;
-                    setupDemoDevices();
-                    break;
+            case ACTION_CONNECT:
+                handleConnect(intent.getStringExtra("addr"));
+                break;
 
-                case ACTION_NOTIFY_GONE:
-                    Log.d(TAG, "MAIN GONE");
+            case ACTION_DISCONNECT:
+                handleDisconnect();
+                break;
 
-                    // the main app is potentially gone -> start 5 seconds self destruct timer
-                    Log.d(TAG, "installing self destruct timer");
-                    mHandler.postDelayed(mSelfDestructTimeout = new Runnable() {
-                        @Override
-                        public void run() {
-                            Log.w(TAG, "SelfDestructTimeout fired!");
-                            stopSelf();
-                        }
-                    }, 2000);
-                    break;
+            case ACTION_BLUETOOTH_ENABLED:
+                // we actually don't do anything here since the MainActivity will
+                // next request location access by itself ...
+                break;
 
-                default:
-                    Log.w(TAG, "Unexpected intent: " + intent);
-                    break;
-            }
+            case ACTION_LOCATION_OK:
+                // location services are ok. Give Activity go for
+                // further action
+                mState = STATE_IDLE;
+                sendStatus(ACTION_NOTIFY_INITIALIZED);
+                break;
+
+            case ACTION_SETUP_DEMO:
+                Log.d(TAG, "SETUP DEMO");
+                mDemoEnabled = true;
+                setupDemoDevices();
+                break;
+
+            default:
+                Log.w(TAG, "Unexpected intent: " + intent);
+                break;
         }
-    };
+    }
 
     private
     void setupDemoDevices() {
@@ -238,7 +356,6 @@ public class Hm10Service extends Service {
         filter.addAction(ACTION_LOCATION_OK);
         filter.addAction(ACTION_CONNECT);
         filter.addAction(ACTION_DISCONNECT);
-        filter.addAction(ACTION_SEND_MESSAGE);
         filter.addAction(ACTION_SETUP_DEMO);
         filter.addAction(ACTION_NOTIFY_GONE);
         LocalBroadcastManager.getInstance(this).registerReceiver(mActivityReceiver, filter);
@@ -251,7 +368,16 @@ public class Hm10Service extends Service {
 
         this.mDevices = new ArrayList<>();
         this.mState = STATE_INITIALIZING;
+        mRecentDevices.decode(getSharedPreferences(RECENT_PREFERENCES, MODE_PRIVATE).getString(RECENT_DEVICES, null));
+
+        File dir = new File(getCacheDir(), LAYOUT_CACHE_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            Log.w(TAG, "Cannot create layout cache " + dir);
+        mLayoutCache = new LayoutCache(dir, LAYOUT_CACHE_SIZE);
+        Log.d(TAG, "Layout cache: " + mLayoutCache);
 
+        mWorker = new ProtocolWorker(TAG, mProcessor);
+        EventBus.getDefault().register(EventBus.SendMessage.class, mSendSubscriber, null);
         setFilter();
         setupBLE();
     }
@@ -279,31 +405,24 @@ public class Hm10Service extends Service {
         LocalBroadcastManager.getInstance(this).sendBroadcast(i);
     }
 
-    private void sendDevice(final String name, final String addr) {
+    private void sendDevice(String name, String addr) {
         Log.d(TAG, "sendResult(" + name + "," + addr + ")");
-        sendStatus(ACTION_NOTIFY_DEVICE, new HashMap<String, String>()
-            {{ put( "name", name ); put("addr", addr); }});
+        EventBus.getDefault().post(new EventBus.DeviceFound(name, addr));
     }
 
-    private void sendDevice(final BluetoothDevice dev) {
-        Log.d(TAG, "sendResult(" + dev.getName() + "," + dev.getAddress() + ")");
-        sendStatus(ACTION_NOTIFY_DEVICE, new HashMap<String, String>()
-        {{ put( "name", dev.getName() ); put("addr", dev.getAddress()); }});
+    private void sendDevice(BluetoothDevice dev) {
+        sendDevice(dev.getName(), dev.getAddress());
     }
 
-    private void sendMessage(final String cmd, final String data) {
-        Log.d(TAG, "sendMessage(" + cmd + "," + data + ")");
-        sendStatus(ACTION_NOTIFY_MESSAGE, new HashMap<String, String>()
-            {{ put( "cmd", cmd ); put("data", data); }});
+    private void sendMessage(DeviceCommand command) {
+        Log.d(TAG, "sendMessage(" + command + ")");
+        EventBus.getDefault().post(new EventBus.DeviceMessage(command));
     }
 
-    private void sendLayout(String layout, boolean isDemo) {
+    private void sendLayout(String xml, LayoutXmlParser.Layout layout, boolean isDemo) {
         Log.d(TAG, "sendLayout()");
-        Intent i = new Intent();
-        i.setAction(ACTION_NOTIFY_LAYOUT);
-        i.putExtra("layout", layout);
-        i.putExtra("demo", isDemo);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(i);
+        mLayout = new EventBus.Layout(mNextLayoutId++, xml, layout, isDemo);
+        EventBus.getDefault().post(mLayout);
     }
 
     @Override
@@ -350,6 +469,7 @@ public class Hm10Service extends Service {
 
     @SuppressLint("ResourceType")
     public void connect(String addr) {
+        mWorker.checkThread();
         mState = STATE_CONNECTING;
 
         // check if the user tries to use a demo setup
@@ -375,19 +495,95 @@ public class Hm10Service extends Service {
         }
 
         Log.d(TAG, "connect " + addr);
-        for (int i = 0; i < this.mDevices.size(); i++) {
-            // check if addresses are equal, connect if yes
-            if (this.mDevices.get(i).getAddress().equals(addr)) {
-                Log.d(TAG, "device found");
-                mBluetoothGatt = this.mDevices.get(i).connectGatt(this, false, gattCallback);
-                return;
-            }
+        BluetoothDevice dev = findDevice(addr);
+        if (dev != null) {
+            openSession(dev, true);
+            return;
         }
 
         // this error should actually never happen as it is an internal problem
         sendConFail("Device not found");
     }
 
+    // the device with the given address. Devices not seen while scanning, like
+    // the recently used ones, are connected to directly by their address
+    private BluetoothDevice findDevice(String addr) {
+        for (BluetoothDevice dev : mDevices)
+            if (dev.getAddress().equalsIgnoreCase(addr))
+                return dev;
+
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if ((adapter == null) || !BluetoothAdapter.checkBluetoothAddress(addr))
+            return null;
+        return adapter.getRemoteDevice(addr);
+    }
+
+    // connect to a further device the items of the layout refer to. It doesn't
+    // need to have been seen while scanning
+    private void connectFurther(String addr) {
+        if (mSessions.containsKey(addr))
+            return;
+
+        BluetoothDevice dev = findDevice(addr);
+        if (dev == null) {
+            Log.w(TAG, "Cannot connect to further device " + addr);
+            showToast("Cannot connect to " + addr);
+            return;
+        }
+        openSession(dev, false);
+    }
+
+    // remember a device the layout came from, so it can be connected to
+    // without scanning next time
+    private void addRecentDevice(BluetoothDevice dev) {
+        mRecentDevices.add(dev.getAddress(), dev.getName());
+        getSharedPreferences(RECENT_PREFERENCES, MODE_PRIVATE).edit()
+                .putString(RECENT_DEVICES, mRecentDevices.encode()).apply();
+    }
+
+    private void openSession(BluetoothDevice dev, boolean primary) {
+        Session session = new Session(mNextSessionId++, dev, primary);
+        Log.d(TAG, "opening " + session);
+        mSessions.put(session.mAddress, session);
+
+        // the time the user spent scanning counts as first phase
+        if (primary) {
+            mPrimary = session;
+            if (mScanStarted > 0)
+                session.mConnection.moveTo(ConnectionStateMachine.State.SCANNING, mScanStarted);
+            mScanStarted = 0;
+        }
+        session.moveTo(ConnectionStateMachine.State.CONNECTING);
+        session.connect();
+    }
+
+    // the session an event is to be sent to. Events not addressed to a device
+    // go to the primary one
+    private Session sessionFor(ControlEvent event) {
+        if (event.device() == null)
+            return mPrimary;
+        return mSessions.get(event.device());
+    }
+
+    // the STATE_* value reported for a connection state
+    private static int stateOf(ConnectionStateMachine.State state) {
+        switch (state) {
+            case IDLE:          return STATE_IDLE;
+            case SCANNING:      return STATE_SCANNING;
+            case CONNECTING:
+            case RECONNECTING:  return STATE_CONNECTING;
+            case DISCONNECTING: return STATE_DISCONNECTING;
+            default:            return STATE_CONNECTED;
+        }
+    }
+
+    private Session sessionById(int id) {
+        for (Session session : mSessions.values())
+            if (session.mId == id)
+                return session;
+        return null;
+    }
+
     // Device scan callback.
     private ScanCallback leScanCallback = new ScanCallback() {
         @Override
@@ -402,7 +598,7 @@ public class Hm10Service extends Service {
                 return;
 
             // Log.d(TAG, "Scan result:" + result.getDevice());
-            addDevice(result.getDevice());
+            mWorker.send(MSG_SCAN_RESULT, result.getDevice());
         }
     };
 
@@ -410,6 +606,7 @@ public class Hm10Service extends Service {
         mBluetoothLeScanner = BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner();
         mBluetoothLeScanner.startScan(leScanCallback);
         mState = STATE_SCANNING;
+        mScanStarted = SystemClock.uptimeMillis();
     }
 
     private void stopScanning() {
@@ -424,10 +621,11 @@ public class Hm10Service extends Service {
     private
     boolean testParseLayout(String xml, boolean isDemo) {
         LayoutXmlParser parser = new LayoutXmlParser();
+        parser.setScale(getResources().getDisplayMetrics().density);
         try {
-            // dry run parser to make sure we have valid xml to work on
-            parser.parse(new ByteArrayInputStream(xml.getBytes()));
-            sendLayout(xml, isDemo);
+            // parse to make sure we have valid xml to work on and hand the
+            // result over to the control activity
+            acceptLayout(xml, parser.parse(new ByteArrayInputStream(xml.getBytes())), isDemo);
             return true;
         } catch (XmlPullParserException | IOException e) {
             Log.w(TAG, "PARSE EXCEPTION! " + e.toString());
@@ -436,437 +634,1163 @@ public class Hm10Service extends Service {
         return false;
     }
 
-    private
-    byte[] appendChecksumAndNl(String s) {
-        byte[] b = s.getBytes(StandardCharsets.UTF_8);
-        byte[] result = new byte[b.length + 4];  // plus :XX\n
-        int csum = 0;
-        for (int i = 0; i < b.length; i++) {
-            csum = (csum + (b[i] & 0xff)) & 0xff;  // inner &0xff makes byte unsigned
-            result[i] = b[i];
-        }
+    // send a verified layout to the control activity and connect to the
+    // further devices its items belong to
+    private void acceptLayout(String xml, LayoutXmlParser.Layout layout, boolean isDemo) {
+        sendLayout(xml, layout, isDemo);
 
-        byte[] e = String.format(":%02X\n", csum).getBytes(StandardCharsets.UTF_8);
-        System.arraycopy(e, 0, result, b.length, e.length);
+        if (!isDemo)
+            for (String device : layout.devices())
+                connectFurther(device);
+    }
 
-        return result;
+    // show a toast telling the user e.g. what would be sent while running a demo
+    private void showToast(final String s) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // remove any previous toast to update refresh
+                if(mCurrentToast != null) mCurrentToast.cancel();
+                mCurrentToast = Toast.makeText(Hm10Service.this, s, Toast.LENGTH_SHORT);
+                mCurrentToast.show();
+            }
+        });
+    }
+
+    // send a message to the device the layout came from
+    public
+    void send(String s, boolean expectReply) {
+        if (mPrimary != null)
+            mPrimary.send(s, expectReply);
     }
 
     void send(String s) {
         send(s, false);
     }
 
-    void installTimeout() {
-        mHandler.postDelayed(mTimeout = new Runnable() {
+    void send(ControlEvent event) {
+        Session session = sessionFor(event);
+        if (session != null)
+            session.send(event);
+        else if (event.device() == null)
+            // when running demo there's no connection and we instead show
+            // a "toast" telling the user what would be sent
+            showToast(event.toText().trim());
+        else
+            Log.w(TAG, "Not connected to " + event.device() + ", dropping " + event);
+    }
+
+    private void handleConnect(String addr) {
+        Log.d(TAG, "CONNECT: " + addr);
+        connect(addr);
+    }
+
+    private void handleDisconnect() {
+        Log.d(TAG, "DISCONNECT");
+        // there should be a session. Otherwise it may have been a demo
+        // device. So send "disconnected" in that case
+        if(mSessions.isEmpty()) {
+            Log.d(TAG, "No GATT connection: Demo disconnect");
+            EventBus.getDefault().post(new EventBus.Disconnected());
+        } else
+            disconnect();
+    }
+
+    // disconnect from all devices
+    public void disconnect() {
+        mWorker.checkThread();
+        for (Session session : new ArrayList<>(mSessions.values()))
+            session.disconnect();
+    }
+
+    // The connection to a single device. Every session has its own receive and
+    // transmit buffers, request timers and state, so several devices can be
+    // driven in parallel. The primary session is the one the layout came from.
+    // Further sessions are opened for the devices items of that layout belong
+    // to and just exchange messages.
+    //
+    // A session that has been ready once survives losing the link. It's
+    // connected again to the same device and resumes without the layout.
+    private class Session {
+        final int mId;
+        final String mAddress;
+        final boolean mPrimary;
+        private final BluetoothDevice mDevice;
+        private boolean mReady = false;          // has been ready before
+        private long mReconnectDelay = RECONNECT_DELAY;
+        private long mReconnectUntil = 0;        // deadline of all attempts
+
+        private BluetoothGatt mBluetoothGatt = null;
+        private BluetoothGattCharacteristic mUartCharacteristic = null;
+        private final ConnectionStateMachine mConnection = new ConnectionStateMachine(SystemClock.uptimeMillis());
+
+        private final RequestTable mRequests = new RequestTable(REQUEST_TRIES);
+        private DeviceCommand mDeferredLayout = null;            // layout received before the version
+        private StreamingLayoutParser mDeferredLayoutStream = null;
+        private final LineAssembler mLineAssembler = new LineAssembler(256, MAX_LINE_LENGTH);
+        private final FrameDecoder mFrameDecoder = new FrameDecoder();
+        private final CommandRegistry mCommandRegistry = new CommandRegistry();
+        private StreamingLayoutParser mLayoutStream = null;     // layout being received
+        private StreamingLayoutParser mCompletedLayout = null;  // layout line just completed
+        private DeviceCommand mParsingLayout = null;             // complete layout still being parsed
+        private StreamingLayoutParser mParsingLayoutStream = null;
+        private final TransmitLanes mTransmitLanes = new TransmitLanes(TX_LOW_WATERMARK, TX_HIGH_WATERMARK);
+        // nothing is written before notifications have been enabled. Messages
+        // sent until then are queued
+        private boolean mTransmitInProgress = true;
+        private boolean mPacing = false;         // waiting for the pacer, no write pending
+        private final OutboundCoalescer mCoalescer = new OutboundCoalescer();
+        private final WritePacer mPacer = new WritePacer();
+        private final ConnectionPriority mConnectionPriority = new ConnectionPriority(IDLE_TIMEOUT, IDLE_PRIORITY);
+        private boolean mBinaryFrames = false;   // device accepts binary frames
+        private final byte[] mFrame = new byte[BinaryFrame.MAX_LENGTH];
+        private final FrameEncoder mFrameEncoder = new FrameEncoder();
+        private int mMaxMsgLen = MAX_MSG_LEN;    // max bytes per write for the negotiated MTU
+        private Runnable mMtuTimeout = null;
+
+        // throughput statistics
+        private long mConnectedAt = 0;
+        private long mBytesSent = 0;
+        private long mBytesReceived = 0;
+
+        private final Runnable mPacedWrite = new Runnable() {
+            @Override
+            public void run() {
+                writeNextChunk();
+            }
+        };
+        private final Runnable mIdleCheck = new Runnable() {
+            @Override
+            public void run() {
+                long now = SystemClock.uptimeMillis();
+                int priority = mConnectionPriority.onIdleCheck(now);
+                if (priority != ConnectionPriority.NONE)
+                    requestConnectionPriority(priority);
+                else if (mConnectionPriority.priority() == ConnectionPriority.HIGH)
+                    mWorker.handler().postDelayed(this, mConnectionPriority.idleIn(now));
+            }
+        };
+
+        Session(int id, BluetoothDevice device, boolean primary) {
+            mId = id;
+            mDevice = device;
+            mAddress = device.getAddress().toUpperCase(Locale.US);
+            mPrimary = primary;
+
+            mTransmitLanes.setStats(LatencyStats.getDefault());
+            mTransmitLanes.setListener(new TransmitQueue.Listener() {
+                @Override
+                public void onCongested(int depth) {
+                    Log.w(TAG, mAddress + ": transmission congested, " + depth + " bytes waiting");
+                }
+
                 @Override
-                public void run() {
-                    Log.w(TAG, "Timeout retry: "+mRetryCounter);
-                    mRetryCounter--;
-                    if(mRetryCounter == 0) {
-                        sendConFail("Timeout waiting for: " + mPendingRequest);
+                public void onDrained(int depth) {
+                    Log.d(TAG, mAddress + ": transmission drained, " + depth + " bytes waiting");
+                }
+            });
+            setupCommands();
+        }
+
+        boolean isOpen() {
+            return mBluetoothGatt != null;
+        }
+
+        // establish the GATT connection. Only reconnects may wait for the device
+        // to show up
+        void connect() {
+            mWorker.checkThread();
+            boolean reconnecting = mConnection.state() == ConnectionStateMachine.State.RECONNECTING;
+            mBluetoothGatt = mDevice.connectGatt(Hm10Service.this, reconnecting && RECONNECT_AUTO_CONNECT, mGattCallback);
+            if (mBluetoothGatt == null) {
+                fail("Unable to connect.");
+                onDisconnected();
+            }
+        }
+
+        private final Runnable mReconnect = new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, mAddress + ": reconnecting");
+                connect();
+            }
+        };
+
+        // the link has been lost. Forget everything about it but the round trip
+        // time and connect again
+        private void reconnect(int status) {
+            long now = SystemClock.uptimeMillis();
+            if (mConnection.state() == ConnectionStateMachine.State.READY) {
+                Log.w(TAG, mAddress + ": link lost, status " + status);
+                mReconnectUntil = now + mConnection.timeout(ConnectionStateMachine.State.RECONNECTING);
+                mReconnectDelay = RECONNECT_DELAY;
+                EventBus.getDefault().post(new EventBus.Reconnecting(mPrimary ? null : mAddress));
+            } else
+                Log.w(TAG, mAddress + ": reconnect failed in state " + mConnection.state() + ", status " + status);
+
+            cancel();
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+            mUartCharacteristic = null;
+            mLineAssembler.clear();
+            mTransmitLanes.clear();
+            mCoalescer.clear();
+            mPacer.reset();
+            mConnectionPriority.reset();
+            mTransmitInProgress = true;
+            mPacing = false;
+            mBinaryFrames = false;
+            mMaxMsgLen = MAX_MSG_LEN;
+
+            if (mConnection.state() != ConnectionStateMachine.State.RECONNECTING)
+                moveTo(ConnectionStateMachine.State.RECONNECTING);
+
+            // the deadline covers all attempts
+            mWorker.handler().removeCallbacks(mStateTimeout);
+            mWorker.handler().postDelayed(mStateTimeout, Math.max(0, mReconnectUntil - now));
+
+            // the first attempt is made right away as a brief dropout is most
+            // likely. Give the stack a moment to clean up, though
+            mWorker.handler().postDelayed(mReconnect, mReconnectDelay);
+            mReconnectDelay = Math.min(2 * mReconnectDelay, RECONNECT_MAX_DELAY);
+        }
+
+        // change the state of the connection and watch the deadline of the
+        // new one. Returns false if that's not possible in the current state
+        private boolean moveTo(ConnectionStateMachine.State state) {
+            ConnectionStateMachine.State previous = mConnection.state();
+            if (!mConnection.moveTo(state, SystemClock.uptimeMillis())) {
+                Log.w(TAG, mAddress + ": ignoring transition from " + previous + " to " + state);
+                return false;
+            }
+
+            if (mPrimary) {
+                Hm10Service.this.mState = stateOf(state);
+                mPrimaryState = state;
+            }
+            if (state == ConnectionStateMachine.State.READY) {
+                Log.i(TAG, mAddress + (mReady ? " reconnected" : " ready") + " after " + mConnection.setupTime() +
+                        "ms: " + mConnection.phases() + ", slowest " + mConnection.slowest());
+                if (mReady)
+                    EventBus.getDefault().post(new EventBus.Reconnected(mPrimary ? null : mAddress));
+                else if (mPrimary)
+                    addRecentDevice(mDevice);
+                mReady = true;
+            }
+
+            mWorker.handler().removeCallbacks(mStateTimeout);
+            long timeout = mConnection.timeout(state);
+            if (timeout > 0)
+                mWorker.handler().postDelayed(mStateTimeout, timeout);
+            return true;
+        }
+
+        // the current phase of the connection takes too long
+        private final Runnable mStateTimeout = new Runnable() {
+            @Override
+            public void run() {
+                ConnectionStateMachine.State state = mConnection.state();
+                Log.w(TAG, mAddress + ": timeout in state " + state + " after " +
+                        mConnection.timeIn(SystemClock.uptimeMillis()) + "ms");
+
+                // the disconnection may never be reported if the connection
+                // wasn't established yet
+                if (state == ConnectionStateMachine.State.DISCONNECTING)
+                    onDisconnected();
+                else {
+                    fail("Timeout while " + state.name().toLowerCase(Locale.US) + ".");
+                    disconnect();
+                }
+            }
+        };
+
+        // failures of the primary session are reported to the user. Further
+        // devices just drop out
+        private void fail(String message) {
+            if (mPrimary)
+                sendConFail(message);
+            else {
+                Log.w(TAG, mAddress + ": " + message);
+                showToast(mAddress + ": " + message);
+            }
+        }
+
+        // check if a command is the reply to the request we are waiting for
+        private boolean isPendingReply(DeviceCommand command) {
+            RequestTable.Request request = mRequests.match(command.name(), SystemClock.uptimeMillis());
+            if (request == null)
+                return false;
+
+            Log.d(TAG, "Got expected reply for " + request + ", canceling timeout");
+            scheduleRequestTimeout();
+            return true;
+        }
+
+        private void forward(DeviceCommand command) {
+            sendMessage(mPrimary ? command : command.from(mAddress));
+        }
+
+        // all commands not handled by the service itself are sent to the activities
+        private final CommandRegistry.Handler mForwardHandler = new CommandRegistry.Handler() {
+            @Override
+            public void handle(DeviceCommand command) {
+                forward(command);
+            }
+        };
+
+        private final CommandRegistry.Handler mVersionHandler = new CommandRegistry.Handler() {
+            @Override
+            public void handle(DeviceCommand command) {
+                if (!isPendingReply(command)) {
+                    forward(command);
+                    return;
+                }
+
+                // parse version
+                try {
+                    Version version = new Version(command.text());
+                    if (version.compareTo(new Version(MIN_VERSION)) < 0) {
+                        fail("Reported version V" + command.text() + " is too old. Required version is V" + MIN_VERSION + " or newer.");
                         disconnect();
                     } else {
-                        // re-send. Since we are this time not asking to
-                        // restart the retry timers we have to re-install
-                        // ourselves
-                        installTimeout();
-                        send(mPendingRequest);
+                        // newer devices also accept the more compact binary frames
+                        mBinaryFrames = version.compareTo(new Version(BinaryFrame.MIN_VERSION)) >= 0;
+                        Log.d(TAG, "Using " + (mBinaryFrames ? "binary" : "text") + " frames for control events");
+                        // the layout of a reconnected device is still known
+                        moveTo((mPrimary && !mReady) ? ConnectionStateMachine.State.LAYOUT : ConnectionStateMachine.State.READY);
+
+                        // the layout hasn't been requested yet if one of this device is
+                        // cached. Newer devices can tell if it's still the current one
+                        if (mPrimary && !mReady && !mRequests.isPending("LAYOUT") && (mDeferredLayout == null)) {
+                            if (version.compareTo(new Version(LayoutCache.MIN_VERSION)) >= 0)
+                                send("LAYOUTHASH", true);
+                            else
+                                send("LAYOUT", true);
+                        }
+
+                        // the layout has been requested together with the version. Its
+                        // reply may have arrived while the version was being requested again
+                        if (mDeferredLayout != null) {
+                            DeviceCommand layout = mDeferredLayout;
+                            mDeferredLayout = null;
+                            handleLayout(layout, mDeferredLayoutStream);
+                            mDeferredLayoutStream = null;
+                        }
                     }
+                } catch (IllegalArgumentException e) {
+                    fail("Invalid version detected:\n" + command.text());
+                    disconnect();
+                }
+            }
+        };
+
+        private final CommandRegistry.Handler mLayoutHandler = new CommandRegistry.Handler() {
+            @Override
+            public void handle(DeviceCommand command) {
+                if (!isPendingReply(command)) {
+                    forward(command);
+                    return;
                 }
-            }, 1000);
-    }
 
-    public
-    void send(String s, boolean expectReply) {
+                StreamingLayoutParser stream = mCompletedLayout;
+                mCompletedLayout = null;
 
-        // remove any leading and trailing whitespace from message
-        s = s.trim();
+                // the layout must not be used before the version has been checked
+                if (mRequests.isPending("VERSION")) {
+                    Log.d(TAG, "Layout received before version, deferring it");
+                    mDeferredLayout = command;
+                    mDeferredLayoutStream = stream;
+                    return;
+                }
 
-        // when running demo the uart characteristic is not there and we instead show
-        // a "toast" telling the user what would be sent
-        if(mUartCharacteristic == null) {
-            // remove any previous toast to update refresh
-            if(mCurrentToast != null) mCurrentToast.cancel();
-            mCurrentToast = Toast.makeText(this, s, Toast.LENGTH_SHORT);
-            mCurrentToast.show();
-            return;
+                handleLayout(command, stream);
+            }
+        };
+
+        // the device reports the hash of its current layout. The cached copy
+        // is used if there is one with that hash
+        private final CommandRegistry.Handler mLayoutHashHandler = new CommandRegistry.Handler() {
+            @Override
+            public void handle(DeviceCommand command) {
+                if (!isPendingReply(command)) {
+                    forward(command);
+                    return;
+                }
+
+                String xml = mLayoutCache.get(mAddress, command.text());
+                if ((xml != null) && testParseLayout(xml, false)) {
+                    Log.i(TAG, "Using cached layout " + command.text() + ", " + mLayoutCache);
+                    moveTo(ConnectionStateMachine.State.READY);
+                } else {
+                    Log.d(TAG, "Layout " + command.text() + " not cached, requesting it");
+                    send("LAYOUT", true);
+                }
+            }
+        };
+
+        // the checksum of the layout has been verified. Its xml has mostly been
+        // parsed while it was being received. The parser just has to finish
+        private void handleLayout(DeviceCommand command, StreamingLayoutParser stream) {
+            if ((stream != null) && !stream.isAborted()) {
+                mParsingLayout = command;
+                mParsingLayoutStream = stream;
+                if (stream.isDone())
+                    finishLayout();
+                else
+                    mWorker.handler().postDelayed(mLayoutParseTimeout, LAYOUT_PARSE_TIMEOUT);
+                return;
+            }
+
+            parseLayout(command);
         }
 
-        // gatt connection may already be gone ...
-        if(mBluetoothGatt == null)
-            return;
+        // the parser of a complete layout has stopped
+        private final StreamingLayoutParser.Callback mLayoutParsed = new StreamingLayoutParser.Callback() {
+            @Override
+            public void onParsed(StreamingLayoutParser parser) {
+                if (parser == mParsingLayoutStream)
+                    finishLayout();
+            }
+        };
+
+        private final Runnable mLayoutParseTimeout = new Runnable() {
+            @Override
+            public void run() {
+                mParsingLayoutStream.abort();
+                mParsingLayoutStream = null;
+                mParsingLayout = null;
+                fail("Layout parser timed out.");
+                disconnect();
+            }
+        };
+
+        private void finishLayout() {
+            mWorker.handler().removeCallbacks(mLayoutParseTimeout);
+            DeviceCommand command = mParsingLayout;
+            StreamingLayoutParser stream = mParsingLayoutStream;
+            mParsingLayout = null;
+            mParsingLayoutStream = null;
+
+            LayoutXmlParser.Layout layout = stream.result();
+            if (layout != null) {
+                Log.d(TAG, "Layout with " + layout.items().size() + " items parsed while receiving");
+                moveTo(ConnectionStateMachine.State.READY);
+                acceptLayout(command.text(), layout, false);
+                mLayoutCache.put(mAddress, command.text());
+            } else if (stream.error() != null) {
+                // the line is known to be intact, so the xml is broken indeed
+                Log.w(TAG, "PARSE EXCEPTION! " + stream.error().toString());
+                sendConFail("XML parse failed:\n" + stream.error().toString());
+                disconnect();
+            } else
+                parseLayout(command);
+        }
 
-        if (expectReply) {
-            mPendingRequest = s;
-            mRetryCounter = 5;
-            installTimeout();
+        // parse a layout that couldn't be parsed while it was being received
+        private void parseLayout(DeviceCommand command) {
+            if (testParseLayout(command.text(), false)) {
+                moveTo(ConnectionStateMachine.State.READY);
+                mLayoutCache.put(mAddress, command.text());
+            } else
+                disconnect();
         }
 
-        // append checksum and newline to this message
-        byte[] msg = appendChecksumAndNl(s);
+        private void setupCommands() {
+            mCommandRegistry.register("VERSION", DeviceCommand.Type.VERSION, CommandRegistry.TEXT, mVersionHandler);
+            mCommandRegistry.register("LAYOUT",  DeviceCommand.Type.LAYOUT,  CommandRegistry.TEXT, mLayoutHandler);
+            mCommandRegistry.register("LAYOUTHASH", DeviceCommand.Type.LAYOUTHASH, CommandRegistry.TEXT, mLayoutHashHandler);
+
+            // commands updating elements of the control layout
+            mCommandRegistry.register("TEXT",    DeviceCommand.Type.TEXT,    CommandRegistry.ID_TEXT,    mForwardHandler);
+            mCommandRegistry.register("COLOR",   DeviceCommand.Type.COLOR,   CommandRegistry.ID_COLOR,   mForwardHandler);
+            mCommandRegistry.register("BGCOLOR", DeviceCommand.Type.BGCOLOR, CommandRegistry.ID_COLOR,   mForwardHandler);
+            mCommandRegistry.register("SWITCH",  DeviceCommand.Type.SWITCH,  CommandRegistry.ID_BOOLEAN, mForwardHandler);
+            mCommandRegistry.register("SLIDER",  DeviceCommand.Type.SLIDER,  CommandRegistry.ID_INT,     mForwardHandler);
+            mCommandRegistry.register("ENABLE",  DeviceCommand.Type.ENABLE,  CommandRegistry.ID,         mForwardHandler);
+            mCommandRegistry.register("DISABLE", DeviceCommand.Type.DISABLE, CommandRegistry.ID,         mForwardHandler);
+            mCommandRegistry.setDefaultHandler(mForwardHandler);
+        }
 
-        // check if there's a transmission in progress. Don't send anything
-        // then. Instead append the entire message to the transmit buffer
-        if(mTransmitInProgress) {
-            if(mTransmitBuffer == null)
-                mTransmitBuffer = msg;
-            else {
-                // append cmd2 to current transmit buffer
-                byte[] newBuffer = new byte[mTransmitBuffer.length + msg.length];
-                System.arraycopy(mTransmitBuffer, 0, newBuffer, 0, mTransmitBuffer.length);
-                System.arraycopy(msg, 0, newBuffer, mTransmitBuffer.length, msg.length);
+        void send(String s) {
+            send(s, false);
+        }
 
-                mTransmitBuffer = newBuffer;
-                return;
+        // send requests again whose reply is overdue and give up on those that
+        // have used up all their tries
+        private final Runnable mRequestTimeout = new Runnable() {
+            @Override
+            public void run() {
+                long now = SystemClock.uptimeMillis();
+                for (RequestTable.Request request : mRequests.expired(now)) {
+                    if (request.retries() <= 0) {
+                        fail("Timeout waiting for: " + request.message);
+                        disconnect();
+                        return;
+                    }
+
+                    Log.w(TAG, "Timeout retry " + request + ": " + request.retries() +
+                            ", waiting " + mRequests.rtt().rto() + "ms");
+                    mPacer.onOverload(now);
+                    send(request.message);
+                }
+                scheduleRequestTimeout();
             }
+        };
+
+        private void scheduleRequestTimeout() {
+            mWorker.handler().removeCallbacks(mRequestTimeout);
+            long delay = mRequests.nextDeadline(SystemClock.uptimeMillis());
+            if (delay >= 0)
+                mWorker.handler().postDelayed(mRequestTimeout, delay);
+        }
+
+        void send(String s, boolean expectReply) {
+            send(TransmitLanes.BULK, s, expectReply);
         }
 
-        // ble does not allow us to send more than MAX_MSG_LEN (20) bytes at once. More needs
-        // to be splitted and sent in smaller chunks.
-        if(msg.length > MAX_MSG_LEN) {
-            // split into two messages
-            byte[] cmd1 = new byte[MAX_MSG_LEN];
-            byte[] cmd2 = new byte[msg.length - MAX_MSG_LEN];
-            System.arraycopy(msg, 0, cmd1, 0, MAX_MSG_LEN);
-            System.arraycopy(msg, MAX_MSG_LEN, cmd2, 0, msg.length - MAX_MSG_LEN);
+        // returns false if the message couldn't be queued
+        private boolean send(int lane, String s, boolean expectReply) {
+            mWorker.checkThread();
+            // gatt connection may already be gone ...
+            if(mBluetoothGatt == null)
+                return false;
+
+            // remove any leading and trailing whitespace from message
+            s = s.trim();
+
+            if (expectReply) {
+                mRequests.add(s, SystemClock.uptimeMillis());
+                scheduleRequestTimeout();
+            }
+
+            // append checksum and newline to this message
+            int length = mFrameEncoder.encode(s);
+            return transmit(lane, ControlEvent.Type.TEXT, System.nanoTime(), mFrameEncoder.buffer(), 0, length);
+        }
+
+        void send(ControlEvent event) {
+            mWorker.checkThread();
+            // the device is in an unknown state once it's back and is asked for
+            // it then. Outdated events must not be sent to it
+            if (mReady && (mConnection.state() != ConnectionStateMachine.State.READY)) {
+                Log.d(TAG, mAddress + ": not ready, dropping " + event);
+                return;
+            }
+
+            if (mUartCharacteristic != null) {
+                onLinkActivity();
+
+                // slider and joystick updates are held back while the link is busy or
+                // congested, so newer ones can replace them
+                if (!mCoalescer.offer(event, mTransmitInProgress || mTransmitLanes.isCongested()))
+                    return;
+            }
 
-            // first part becomes message to be sent immediately
-            msg = cmd1;
+            deliver(event);
+        }
 
-            // append second part to transmit buffer if it already exists
-            if(mTransmitBuffer == null)
-                mTransmitBuffer = cmd2;
+        // send a control event, preferably as binary frame if the device accepts them.
+        // Only values actually queued count as sent for the coalescer
+        private void deliver(ControlEvent event) {
+            int lane = TransmitLanes.laneOf(event);
+            boolean queued;
+            if (event.type() == ControlEvent.Type.TEXT)
+                queued = send(lane, event.toText(), false);
+            else if (mBinaryFrames && BinaryFrame.canEncode(event))
+                queued = transmit(lane, event, mFrame, 0, BinaryFrame.encode(event, mFrame));
             else {
-                // append cmd2 to current transmit buffer
-                byte[] newBuffer = new byte[mTransmitBuffer.length + cmd2.length];
-                System.arraycopy(mTransmitBuffer, 0, newBuffer, 0, mTransmitBuffer.length);
-                System.arraycopy(cmd2, 0, newBuffer, mTransmitBuffer.length, cmd2.length);
+                int length = mFrameEncoder.encode(event);
+                queued = transmit(lane, event, mFrameEncoder.buffer(), 0, length);
+            }
+            if (queued)
+                mCoalescer.delivered(event);
+        }
 
-                mTransmitBuffer = newBuffer;
+        private boolean transmit(int lane, ControlEvent event, byte[] msg, int offset, int length) {
+            return transmit(lane, event.type(), event.created(), msg, offset, length);
+        }
+
+        // returns false if the message has been dropped
+        private boolean transmit(int lane, ControlEvent.Type kind, long created, byte[] msg, int offset, int length) {
+            // queue the message and start writing unless a write is already in progress.
+            // In that case the queue is drained once the current write is done. Button
+            // presses then overtake anything less important waiting. They don't
+            // wait for the pacer either
+            if (!mTransmitLanes.write(lane, kind, created, msg, offset, length)) {
+                Log.w(TAG, mAddress + ": transmit queue full, dropping " + kind + " message");
+                return false;
             }
+            if(!mTransmitInProgress || (mPacing && (lane == TransmitLanes.DISCRETE)))
+                writeNextChunk();
+            return true;
         }
 
-        // write command
-        mTransmitInProgress = true;
-        mUartCharacteristic.setWriteType(WRITE_TYPE_NO_RESPONSE);
-        mUartCharacteristic.setValue(msg);
-        if (!mBluetoothGatt.writeCharacteristic(mUartCharacteristic))
-            Log.e(TAG, String.format("ERROR: writeCharacteristic failed for characteristic: %s", mUartCharacteristic.getUuid()));
-    }
+        // ble does not allow us to send more than the MTU minus three bytes at once. More
+        // is sent in several chunks, one after the other
+        private void writeNextChunk() {
+            mWorker.checkThread();
+            mWorker.handler().removeCallbacks(mPacedWrite);
+            mPacing = false;
+
+            // wait if the device may not be able to keep up. Until then this counts as
+            // write in progress, so nothing else starts writing in the meantime. The
+            // few bytes of button presses and switches are never held back
+            long now = SystemClock.uptimeMillis();
+            long delay = mPacer.delay(now);
+            int lane = mTransmitLanes.peekLane();
+            if((delay > 0) && (lane >= 0) && (lane != TransmitLanes.DISCRETE)) {
+                mTransmitInProgress = true;
+                mPacing = true;
+                mWorker.handler().postDelayed(mPacedWrite, delay);
+                return;
+            }
 
-    public void disconnect() {
-        // cancel any pending timeout
-        if(mPendingRequest != null) {
-            mHandler.removeCallbacks(mTimeout);
-            mPendingRequest = null;
+            byte[] chunk = mTransmitLanes.poll(mMaxMsgLen);
+            if(chunk == null) {
+                mTransmitInProgress = false;
+                return;
+            }
+
+            // write command. The chunk is copied by writeCharacteristic, so the queue
+            // may reuse it afterwards
+            mTransmitInProgress = true;
+            mPacer.onWrite(chunk.length, now);
+            mBytesSent += chunk.length;
+            mUartCharacteristic.setWriteType(WRITE_TYPE_NO_RESPONSE);
+            mUartCharacteristic.setValue(chunk);
+            if (!mBluetoothGatt.writeCharacteristic(mUartCharacteristic))
+                Log.e(TAG, String.format("ERROR: writeCharacteristic failed for characteristic: %s", mUartCharacteristic.getUuid()));
         }
 
-        setNotify(mUartCharacteristic, false);
+        // the user is operating the controls or the device is sending. Switch to a
+        // short connection interval until the link is idle again
+        private void onLinkActivity() {
+            if (!canRequestPriority())
+                return;
 
-        // and disconnect from the device
-        if(mBluetoothGatt != null) {
-            mBluetoothGatt.disconnect();
-            mState = STATE_DISCONNECTING;
+            int priority = mConnectionPriority.onActivity(SystemClock.uptimeMillis());
+            if (priority != ConnectionPriority.NONE) {
+                requestConnectionPriority(priority);
+                mWorker.handler().postDelayed(mIdleCheck, mConnectionPriority.idleTimeout());
+            }
         }
-    }
 
-    public boolean setNotify(BluetoothGattCharacteristic characteristic, final boolean enable) {
-        // Check if characteristic is valid
-        if (characteristic == null) {
-            Log.e(TAG, "ERROR: Characteristic is 'null', ignoring setNotify request");
-            return false;
+        // Android allows only one GATT operation at a time. The MTU request and
+        // the CCC descriptor write are in flight until the handshake starts, so
+        // the priority must not be changed before
+        private boolean canRequestPriority() {
+            switch (mConnection.state()) {
+                case HANDSHAKE:
+                case LAYOUT:
+                case READY:
+                    return mBluetoothGatt != null;
+                default:
+                    return false;
+            }
         }
 
-        // Get the CCC Descriptor for the characteristic
-        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID_CCC_DESCRIPTOR);
-        if (descriptor == null) {
-            Log.e(TAG, String.format("ERROR: Could not get CCC descriptor for characteristic %s", characteristic.getUuid()));
-            return false;
+        private void requestConnectionPriority(int priority) {
+            if (!canRequestPriority())
+                return;
+
+            Log.i(TAG, "Requesting " + ConnectionPriority.name(priority) + " connection priority (" +
+                    mConnectionPriority + ")");
+            if (!mBluetoothGatt.requestConnectionPriority(priority))
+                Log.w(TAG, "requestConnectionPriority failed");
         }
 
-        // Check if characteristic has NOTIFY or INDICATE properties and set the correct byte value to be written
-        byte[] value;
-        int properties = characteristic.getProperties();
-        if ((properties & PROPERTY_NOTIFY) > 0) {
-            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
-        } else if ((properties & PROPERTY_INDICATE) > 0) {
-            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
-        } else {
-            Log.e(TAG, String.format("ERROR: Characteristic %s does not have notify or indicate property", characteristic.getUuid()));
-            return false;
+        // stop all timers of this session and anything waiting for the device
+        private void cancel() {
+            // cancel any pending timeout
+            mRequests.clear();
+            mWorker.handler().removeCallbacks(mRequestTimeout);
+            mDeferredLayout = null;
+            if(mDeferredLayoutStream != null) {
+                mDeferredLayoutStream.abort();
+                mDeferredLayoutStream = null;
+            }
+            if(mMtuTimeout != null) {
+                mWorker.handler().removeCallbacks(mMtuTimeout);
+                mMtuTimeout = null;
+            }
+            mWorker.handler().removeCallbacks(mPacedWrite);
+            mWorker.handler().removeCallbacks(mIdleCheck);
+            mWorker.handler().removeCallbacks(mStateTimeout);
+            mWorker.handler().removeCallbacks(mReconnect);
+
+            // and stop parsing a layout being received
+            if(mLayoutStream != null) {
+                mLayoutStream.abort();
+                mLayoutStream = null;
+            }
+            if(mParsingLayoutStream != null) {
+                mWorker.handler().removeCallbacks(mLayoutParseTimeout);
+                mParsingLayoutStream.abort();
+                mParsingLayoutStream = null;
+                mParsingLayout = null;
+            }
         }
-        final byte[] finalValue = enable ? value : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
 
-        if(mBluetoothGatt == null) {
-            Log.w(TAG, "No GATT connection");
-            return false;
+        void disconnect() {
+            mWorker.checkThread();
+            cancel();
+            setNotify(mUartCharacteristic, false);
+
+            // and disconnect from the device. There's no link while waiting
+            // to reconnect
+            if(mBluetoothGatt != null) {
+                mBluetoothGatt.disconnect();
+                moveTo(ConnectionStateMachine.State.DISCONNECTING);
+            } else if (mConnection.state() != ConnectionStateMachine.State.IDLE)
+                onDisconnected();
         }
 
-        if (!mBluetoothGatt.setCharacteristicNotification(descriptor.getCharacteristic(), enable)) {
-            Log.e(TAG, String.format("ERROR: setCharacteristicNotification failed for descriptor: %s", descriptor.getUuid()));
+        // release the connection. Events still arriving for it are ignored
+        void close() {
+            mWorker.checkThread();
+            cancel();
+            if (mBluetoothGatt != null) {
+                mBluetoothGatt.close();
+                mBluetoothGatt = null;
+            }
+            mSessions.remove(mAddress);
+            if (Hm10Service.this.mPrimary == this) {
+                Hm10Service.this.mPrimary = null;
+                mPrimaryState = ConnectionStateMachine.State.IDLE;
+            }
         }
 
-        // Then write to descriptor
-        descriptor.setValue(finalValue);
-        return mBluetoothGatt.writeDescriptor(descriptor);
-    }
+        boolean setNotify(BluetoothGattCharacteristic characteristic, final boolean enable) {
+            // Check if characteristic is valid
+            if (characteristic == null) {
+                Log.e(TAG, "ERROR: Characteristic is 'null', ignoring setNotify request");
+                return false;
+            }
 
-    // Various callback methods defined by the BLE API.
-    private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status,
-                                            int newState) {
+            // Get the CCC Descriptor for the characteristic
+            final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID_CCC_DESCRIPTOR);
+            if (descriptor == null) {
+                Log.e(TAG, String.format("ERROR: Could not get CCC descriptor for characteristic %s", characteristic.getUuid()));
+                return false;
+            }
+
+            // Check if characteristic has NOTIFY or INDICATE properties and set the correct byte value to be written
+            byte[] value;
+            int properties = characteristic.getProperties();
+            if ((properties & PROPERTY_NOTIFY) > 0) {
+                value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+            } else if ((properties & PROPERTY_INDICATE) > 0) {
+                value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+            } else {
+                Log.e(TAG, String.format("ERROR: Characteristic %s does not have notify or indicate property", characteristic.getUuid()));
+                return false;
+            }
+            final byte[] finalValue = enable ? value : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+
+            if(mBluetoothGatt == null) {
+                Log.w(TAG, "No GATT connection");
+                return false;
+            }
+
+            if (!mBluetoothGatt.setCharacteristicNotification(descriptor.getCharacteristic(), enable)) {
+                Log.e(TAG, String.format("ERROR: setCharacteristicNotification failed for descriptor: %s", descriptor.getUuid()));
+            }
+
+            // Then write to descriptor
+            descriptor.setValue(finalValue);
+            return mBluetoothGatt.writeDescriptor(descriptor);
+        }
+
+        private void handleConnectionStateChange(int status, int newState) {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                mState = STATE_CONNECTED;
-                Log.i(TAG, "Connected to GATT server.");
+                if (!moveTo(ConnectionStateMachine.State.DISCOVERING))
+                    return;
+
+                mConnectedAt = SystemClock.uptimeMillis();
+                Log.i(TAG, "Connected to GATT server " + mAddress + ".");
                 if (!mBluetoothGatt.discoverServices()) {
-                    sendConFail("Unable to start service discovery.");
-                    mBluetoothGatt.close();
-                    mBluetoothGatt = null;
-                    mState = STATE_IDLE;
+                    fail("Unable to start service discovery.");
+                    close();
+                    moveTo(ConnectionStateMachine.State.IDLE);
+                    if (!mPrimary)
+                        EventBus.getDefault().post(new EventBus.Disconnected(mAddress));
                 }
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                // if we weren't connected before, then this is a failed connection
-                if ((mState != STATE_DISCONNECTING) && (mState != STATE_CONNECTED)) {
-                    Log.e(TAG, "state:" + mState);
-                    sendConFail("Unable to establish bluetooth connection.");
+                // a link lost unless we asked for it is established again
+                if (mReady && (mConnection.state() != ConnectionStateMachine.State.DISCONNECTING)) {
+                    reconnect(status);
+                    return;
                 }
-                mBluetoothGatt.close();
-                mBluetoothGatt = null;
-                mState = STATE_IDLE;
 
-                Log.i(TAG, "Disconnected from GATT server.");
-                sendStatus(ACTION_DISCONNECTED);
+                // if we weren't connected before, then this is a failed connection
+                if (mConnection.state() == ConnectionStateMachine.State.CONNECTING) {
+                    Log.e(TAG, "status:" + status);
+                    fail("Unable to establish bluetooth connection.");
+                }
+                onDisconnected();
             }
         }
 
-        @Override
+        // the connection is gone
+        private void onDisconnected() {
+            close();
+            moveTo(ConnectionStateMachine.State.IDLE);
+
+            Log.i(TAG, "Disconnected from GATT server " + mAddress + ". Received " + mFrameDecoder.frames() +
+                    " frames, " + mFrameDecoder.checksumFailures() + " checksum failures, " +
+                    mFrameDecoder.malformedFrames() + " malformed frames, " +
+                    mLineAssembler.overflows() + " overlong lines, " + mLineAssembler.droppedBytes() +
+                    " bytes dropped, " + mLineAssembler.resyncs() + " resyncs.");
+            Log.i(TAG, "Protocol worker: " + mWorker);
+            Log.i(TAG, "Throughput: " + throughput());
+            Log.i(TAG, "Transmit queue: " + mTransmitLanes + ", updates " + mCoalescer);
+            Log.i(TAG, "Write pacing: " + mPacer);
+            Log.i(TAG, "Requests: " + mRequests);
+            Log.i(TAG, "Latencies:\n" + LatencyStats.getDefault().report());
+            Log.i(TAG, "Connection priority: " + mConnectionPriority);
+            Log.i(TAG, "Connection phases: " + mConnection);
+
+            // the further devices are of no use without the layout
+            if (mPrimary) {
+                Hm10Service.this.disconnect();
+                EventBus.getDefault().post(new EventBus.Disconnected());
+            } else
+                EventBus.getDefault().post(new EventBus.Disconnected(mAddress));
+        }
+
         // New services discovered
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        private void handleServicesDiscovered(int status) {
             // check if the UART service is available
             if ((status == BluetoothGatt.GATT_SUCCESS) &&
                 (mBluetoothGatt.getService(UUID_UART_SERVICE) != null) &&
                 (mBluetoothGatt.getService(UUID_UART_SERVICE).getCharacteristic(UUID_UART_CHRACTERISTIC) != null)) {
                 // if we get here, then it's a HM10 and we can talk UART with it
                 Log.d(TAG, "UART service available");
-                mIncomingBytes = new byte[]{};
+                if (!moveTo(ConnectionStateMachine.State.SUBSCRIBING))
+                    return;
 
                 mUartCharacteristic =
                         mBluetoothGatt.getService(UUID_UART_SERVICE).getCharacteristic(UUID_UART_CHRACTERISTIC);
 
-                if (!setNotify(mUartCharacteristic, true)) {
-                    mUartCharacteristic = null;
-                    sendConFail("Failed to enable notifications.");
-                    mBluetoothGatt.disconnect();
-                }
-
-                // if we get here, the next will be the write callback for writing the descriptor
-
+                // ask for a larger MTU first. Only one GATT operation may be in progress
+                // at a time, so notifications are enabled once the MTU has been negotiated
+                mMaxMsgLen = MAX_MSG_LEN;
+                if (mBluetoothGatt.requestMtu(REQUESTED_MTU)) {
+                    // don't wait forever for devices never reporting the new MTU
+                    mWorker.handler().postDelayed(mMtuTimeout = new Runnable() {
+                        @Override
+                        public void run() {
+                            Log.w(TAG, "MTU negotiation timed out");
+                            mMtuTimeout = null;
+                            enableNotifications();
+                        }
+                    }, MTU_TIMEOUT);
+                } else
+                    enableNotifications();
             } else {
                 if (status != BluetoothGatt.GATT_SUCCESS)
-                    sendConFail("No services found.");
+                    fail("No services found.");
                 else if (mBluetoothGatt.getService(UUID_UART_SERVICE) == null)
-                    sendConFail("UART service not found.");
+                    fail("UART service not found.");
                 else
-                    sendConFail("UART characteristic not found.");
+                    fail("UART characteristic not found.");
 
                 mBluetoothGatt.disconnect();
             }
         }
 
-        private
-        void processLine(String line) {
-            // Log.w(TAG, "processLine: " + line);
-
-            // everything up to first whitespace is the command name
-            String[] parts = line.split(" +", 2);  // split line at first ':'
-            String cmd = parts[0];
-            String data = (parts.length > 1) ? parts[1].trim() : "";
-
-            if (mPendingRequest != null) {
-                if (mPendingRequest.equals(cmd)) {
-                    Log.d(TAG, "Got expected reply for " + mPendingRequest + ", canceling timeout");
-                    mHandler.removeCallbacks(mTimeout);
-                    mPendingRequest = null;
-                } else {
-                    // send all unknown commands to the activities
-                    sendMessage(cmd, data);
+        private void handleCharacteristicChanged(byte[] value) {
+            // Assemble message in the line assembler and run all lines completed by
+            // this chunk through the parser. Broken lines are dropped and only counted
+            // by the decoder
+            onLinkActivity();
+            mBytesReceived += value.length;
+            mLineAssembler.append(value);
+            while(mLineAssembler.nextLine()) {
+                // a layout being parsed while receiving it is complete now
+                if ((mLayoutStream != null) && mLayoutStream.isStarted()) {
+                    mLayoutStream.feedLine(mLineAssembler);
+                    mCompletedLayout = mLayoutStream;
+                    mLayoutStream = null;
                 }
 
-                switch (cmd) {
-                    case "VERSION":
-                        // parse version
-                        try {
-                            if (new Version(data).compareTo(new Version(MIN_VERSION)) < 0) {
-                                sendConFail("Reported version V" + data + " is too old. Required version is V" + MIN_VERSION + " or newer.");
-                                disconnect();
-                            } else
-                                send("LAYOUT", true);
-                        } catch (IllegalArgumentException e) {
-                            sendConFail("Invalid version detected:\n" + data);
-                            disconnect();
-                        }
-                        break;
-
-                    case "LAYOUT":
-                        if (!testParseLayout(data, false))
-                            disconnect();
-                        break;
-
-                    default:
-                        Log.w(TAG, "unexpected pending request: " + mPendingRequest);
+                if (mFrameDecoder.decode(mLineAssembler))
+                    mCommandRegistry.dispatch(mFrameDecoder);
+                else {
+                    // broken lines usually mean the device is being overrun
+                    mPacer.onOverload(SystemClock.uptimeMillis());
+                    Log.w(TAG, "Dropped broken line, checksum failures: " + mFrameDecoder.checksumFailures() +
+                            ", malformed: " + mFrameDecoder.malformedFrames());
+                }
 
+                // drop the parsed layout if the line was broken or not expected
+                if (mCompletedLayout != null) {
+                    mCompletedLayout.abort();
+                    mCompletedLayout = null;
                 }
-            } else
-                sendMessage(cmd, data);
-        }
-
-        // check if there's a nl/cr in the byte array
-        private
-        int findLineBreak(byte[] data)  {
-            for (int i = 0; i < data.length; ++i)
-                if(data[i] == '\n')
-                    return i;
-
-            return -1;
-        }
-
-        // join two byte arrays
-        private
-        byte[] join(byte[] a, byte[] b) {
-            byte[] combined = new byte[a.length + b.length];
-            for (int i = 0; i < combined.length; ++i)
-                combined[i] = (i < a.length) ? a[i] : b[i - a.length];
-            return combined;
-        }
-
-        // parse a byte array containing a line
-        private
-        void parseLineBytes(byte[] lineBytes) {
-            // third last byte should be ':' followed by a hex checksum byte
-            if ((lineBytes.length > 3) && (lineBytes[lineBytes.length - 3] == ':')) {
-                // calculate checksum
-                int calc_sum = 0;
-                for (int i = 0; i < lineBytes.length - 3; ++i) {
-                    int by = (lineBytes[i] >= 0) ? lineBytes[i] : (256 + lineBytes[i]);
-                    if (by >= 32) calc_sum = (calc_sum + by) & 255;
+            }
+
+            // a long reply like the layout takes a while. Don't request it again
+            // while it's still arriving
+            mRequests.extend(mLineAssembler, SystemClock.uptimeMillis());
+
+            // while waiting for a layout feed whatever has been received of it
+            // into the parser
+            if (mRequests.isPending("LAYOUT")) {
+                if (mLayoutStream == null)
+                    mLayoutStream = new StreamingLayoutParser(getResources().getDisplayMetrics().density,
+                            mWorker.handler(), mLayoutParsed);
+                mLayoutStream.feedPending(mLineAssembler);
+
+                // the line may just have been broken during transfer. So only stop
+                // parsing. The error is reported once the checksum of the complete
+                // line has been verified, otherwise the layout is requested again
+                if ((mLayoutStream.error() != null) && !mLayoutStream.isAborted()) {
+                    Log.d(TAG, "Layout xml broken while receiving: " + mLayoutStream.error());
+                    mLayoutStream.abort();
                 }
 
-                // last two bytes are hex checksum
-                byte[] csumbytes = Arrays.copyOfRange(lineBytes, lineBytes.length - 2, lineBytes.length);
-                try {
-                    int csum = Integer.valueOf(new String(csumbytes, StandardCharsets.UTF_8), 16);
+                // a layout not fitting into a line can't be received at all
+                if (mLayoutStream.isTooLong()) {
+                    sendConFail("XML parse failed:\nLayout exceeds max line length");
+                    disconnect();
+                }
+            }
+        }
 
-                    // check if checksum matches
-                    if (csum == calc_sum) {
-                        // cut checksum from bytearray
-                        lineBytes = Arrays.copyOfRange(lineBytes, 0, lineBytes.length - 3);
+        private void enableNotifications() {
+            if (mBluetoothGatt == null)
+                return;
 
-                        // got a line of bytes to parse
-                        String line = new String(lineBytes, StandardCharsets.UTF_8).trim();
+            // the MTU is known now
+            mPacer.seed(mMaxMsgLen, ConnectionPriority.interval(mConnectionPriority.priority()));
 
-                        processLine(line);
-                    } else
-                        Log.w(TAG, "Checksum failure in line " + new String(lineBytes, StandardCharsets.UTF_8));
-                } catch (NumberFormatException e) {
-                    // if anything goes wrong we'll just ignore this (broken) message
-                }
+            if (!setNotify(mUartCharacteristic, true)) {
+                mUartCharacteristic = null;
+                fail("Failed to enable notifications.");
+                mBluetoothGatt.disconnect();
             }
+
+            // if we get here, the next will be the write callback for writing the descriptor
         }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-
-            // Assemble message in byte array. Assembly has to take place on the byte
-            // array since e.g. 16 bit characters may be split over transfer bounds and
-            // would thus not be re-assembled correctly
-            mIncomingBytes = join(mIncomingBytes, characteristic.getValue());
-
-            // now check if there is a delimiter (\n or \r) in the buffer
-            int lineBreakIndex = findLineBreak(mIncomingBytes);
-            while(lineBreakIndex >= 0) {
-                // Check if line break is right at start of array. This means that
-                // we received an empty line
-                if(lineBreakIndex == 0) {
-                    // if there is _only_ the delimiter, then restart with an empty array, otherwise
-                    // keep bytes 1...
-                    if(mIncomingBytes.length <= 1) mIncomingBytes = new byte[]{};
-                    else mIncomingBytes = Arrays.copyOfRange(mIncomingBytes, 1, mIncomingBytes.length);
-                } else {
-                    // check if the byte before \n is a \r. Don't include that if it's present.
-                    byte[] lineBytes = Arrays.copyOfRange(mIncomingBytes, 0, lineBreakIndex -
-                            ((mIncomingBytes[lineBreakIndex-1] == '\r')?1:0));
+        private void handleMtuChanged(int mtu, int status) {
+            // ignore reports arriving after the timeout
+            if (mMtuTimeout == null)
+                return;
 
-                    // restart with empty array if the delimiter is the last char in the array
-                    if (lineBreakIndex == mIncomingBytes.length - 1) mIncomingBytes = new byte[]{};
-                    else mIncomingBytes = Arrays.copyOfRange(mIncomingBytes, lineBreakIndex, mIncomingBytes.length);
+            mWorker.handler().removeCallbacks(mMtuTimeout);
+            mMtuTimeout = null;
 
-                    // finally run the line through the parser
-                    parseLineBytes(lineBytes);
-                }
-                lineBreakIndex = findLineBreak(mIncomingBytes);
-            }
+            // three bytes of each packet are used by the ATT header
+            if (status == BluetoothGatt.GATT_SUCCESS)
+                mMaxMsgLen = Math.max(MAX_MSG_LEN, mtu - 3);
+            Log.d(TAG, "MTU " + mtu + ", status " + status + ": writing up to " + mMaxMsgLen + " bytes");
+
+            enableNotifications();
         }
 
-        @Override
-        // Result of a characteristic read operation
-        public void onCharacteristicWrite(BluetoothGatt gatt,
-                                          BluetoothGattCharacteristic characteristic,
-                                          int status) {
+        // Result of a characteristic write operation
+        private void handleCharacteristicWrite(int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.d(TAG, "characteristic written");
+                mPacer.onWriteComplete(SystemClock.uptimeMillis());
+                mTransmitLanes.onWritten();
+            } else {
+                // the chunk is lost. Slow down and continue with the next one, the
+                // request retries take care of the rest
+                Log.w(TAG, "characteristic write failed: " + status);
+                mPacer.onOverload(SystemClock.uptimeMillis());
+            }
 
-                mTransmitInProgress = false;   // transmission done
-                if(mTransmitBuffer != null) {
-                    // extract at most MAX_MSG_LEN bytes
-                    byte[] msg = null;
-                    if(mTransmitBuffer.length < MAX_MSG_LEN) {
-                        msg = mTransmitBuffer;
-                        mTransmitBuffer = null;
-                    } else {
-                        // more than MAX_MSG_LEN bytes: extract first MAX_MSG_LEN bytes
-                        msg = new byte[MAX_MSG_LEN];
-                        byte[] remain = new byte[mTransmitBuffer.length - MAX_MSG_LEN];
-                        System.arraycopy(mTransmitBuffer, 0, msg, 0, MAX_MSG_LEN);
-                        System.arraycopy(mTransmitBuffer, MAX_MSG_LEN, remain, 0, mTransmitBuffer.length - MAX_MSG_LEN);
-                        mTransmitBuffer = remain;
-                    }
-
-                    if(msg != null) {
-                        // write data from transmit buffer
-                        mTransmitInProgress = true;   // and another tranmission in progress
-                        mUartCharacteristic.setWriteType(WRITE_TYPE_NO_RESPONSE);
-                        mUartCharacteristic.setValue(msg);
-                        if (!mBluetoothGatt.writeCharacteristic(mUartCharacteristic))
-                            Log.e(TAG, String.format("ERROR: writeCharacteristic failed for characteristic: %s", mUartCharacteristic.getUuid()));
-                    }
-                }
+            mTransmitInProgress = false;   // transmission done
 
+            // continue with whatever is queued. Once that's done, send the latest
+            // of the slider and joystick updates held back in the meantime. Those
+            // not fitting below the high watermark wait for the next write
+            if (!mTransmitLanes.isEmpty())
+                writeNextChunk();
+            else {
+                ControlEvent event;
+                while (!mTransmitLanes.isCongested() && ((event = mCoalescer.poll()) != null))
+                    deliver(event);
             }
         }
 
-        @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+        // the CCC descriptor has been written, notify is 1 if notifications
+        // have been turned on
+        private void handleDescriptorWrite(int status, int notify) {
             // Do some checks first
-            if (status != BluetoothGatt.GATT_SUCCESS)
+            if (status != BluetoothGatt.GATT_SUCCESS) {
                 Log.e(TAG, "Write descriptor failed");
+                return;
+            }
 
-            // Check if this was the Client Configuration Descripto
-            if (descriptor.getUuid().equals(UUID_CCC_DESCRIPTOR)) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    // Check if we were turning notifications on or off
-                    byte[] value = descriptor.getValue();
-                    if (value != null) {
-                        if (value[0] != 0) {
-                            mTransmitInProgress = false;
-                            // Notify set to on, add it to the set of notifying characteristics
-                            Log.d(TAG, "added notification");
-                            send("\nVERSION", true);  // request version and expect reply
-                        }
-                    } else
-                        Log.d(TAG, "removed notification");
-                }
+            // Check if we were turning notifications on or off
+            if (notify != 0) {
+                // Notify set to on, add it to the set of notifying characteristics
+                Log.d(TAG, "added notification");
+                if (!moveTo(ConnectionStateMachine.State.HANDSHAKE))
+                    return;
+
+                // request version and layout at once. The layout is only
+                // used once the version has been accepted. Further devices
+                // don't have to provide a layout. If one of this device is
+                // cached, it depends on the version whether it can be checked
+                // instead of being transferred
+                send("\nVERSION", true);
+                if (mPrimary && !mReady && !mLayoutCache.contains(mAddress))
+                    send("LAYOUT", true);
+
+                // and send whatever has been queued meanwhile
+                mTransmitInProgress = false;
+                writeNextChunk();
+            } else
+                Log.d(TAG, "removed notification");
+        }
+
+        // bytes per second sent and received since connected
+        String throughput() {
+            long time = (mConnectedAt > 0) ? SystemClock.uptimeMillis() - mConnectedAt : 0;
+            return mBytesSent + " bytes sent (" + 1000 * mBytesSent / Math.max(1, time) + " B/s), " +
+                    mBytesReceived + " bytes received (" + 1000 * mBytesReceived / Math.max(1, time) +
+                    " B/s) in " + time + "ms";
+        }
+
+        // Various callback methods defined by the BLE API. These are called on binder
+        // threads and only hand the events over to the protocol worker
+        final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status,
+                                                int newState) {
+                mWorker.send(MSG_CONNECTION_STATE, status, newState, Session.this);
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                mWorker.send(MSG_SERVICES_DISCOVERED, status, 0, Session.this);
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                mWorker.send(MSG_MTU_CHANGED, mtu, status, Session.this);
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt,
+                                                BluetoothGattCharacteristic characteristic) {
+                // the characteristic value may be replaced by the next notification before
+                // the worker gets to it, so hand over a copy. The session is identified by
+                // its id then
+                mWorker.send(MSG_RECEIVED, mId, 0, characteristic.getValue().clone());
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt,
+                                              BluetoothGattCharacteristic characteristic,
+                                              int status) {
+                mWorker.send(MSG_WRITTEN, status, 0, Session.this);
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                // only the Client Configuration Descriptor is ever written
+                if (!descriptor.getUuid().equals(UUID_CCC_DESCRIPTOR))
+                    return;
+
+                byte[] value = descriptor.getValue();
+                int notify = ((value != null) && (value[0] != 0)) ? 1 : 0;
+                mWorker.send(MSG_DESCRIPTOR_WRITTEN, status, notify, Session.this);
+            }
+        };
+
+        // handle a GATT event of this session
+        void process(Message msg) {
+            mWorker.checkThread();
+            switch (msg.what) {
+                case MSG_CONNECTION_STATE:
+                    handleConnectionStateChange(msg.arg1, msg.arg2);
+                    break;
+
+                case MSG_SERVICES_DISCOVERED:
+                    handleServicesDiscovered(msg.arg1);
+                    break;
+
+                case MSG_MTU_CHANGED:
+                    handleMtuChanged(msg.arg1, msg.arg2);
+                    break;
+
+                case MSG_RECEIVED:
+                    handleCharacteristicChanged((byte[]) msg.obj);
+                    break;
+
+                case MSG_WRITTEN:
+                    handleCharacteristicWrite(msg.arg1);
+                    break;
+
+                case MSG_DESCRIPTOR_WRITTEN:
+                    handleDescriptorWrite(msg.arg1, msg.arg2);
+                    break;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (mPrimary ? "primary" : "further") + " session #" + mId + " " + mAddress;
+        }
+    }
+
+    // everything coming from GATT callbacks and the activities is processed here
+    private final ProtocolWorker.Processor mProcessor = new ProtocolWorker.Processor() {
+        @Override
+        public void process(Message msg) {
+            switch (msg.what) {
+                case MSG_REQUEST:
+                    handleRequest((Intent) msg.obj);
+                    break;
+
+                case MSG_SCAN_RESULT:
+                    addDevice((BluetoothDevice) msg.obj);
+                    break;
+
+                case MSG_CONNECTION_STATE:
+                case MSG_SERVICES_DISCOVERED:
+                case MSG_MTU_CHANGED:
+                case MSG_WRITTEN:
+                case MSG_DESCRIPTOR_WRITTEN:
+                    // events may still arrive for sessions closed meanwhile
+                    Session session = (Session) msg.obj;
+                    if (session.isOpen())
+                        session.process(msg);
+                    break;
+
+                case MSG_RECEIVED:
+                    session = sessionById(msg.arg1);
+                    if ((session != null) && session.isOpen())
+                        session.process(msg);
+                    break;
+
+                case MSG_SEND:
+                    Log.d(TAG, "SEND MESSAGE: " + msg.obj);
+                    send((ControlEvent) msg.obj);
+                    break;
+
+                case MSG_CONNECT:
+                    handleConnect((String) msg.obj);
+                    break;
+
+                case MSG_DISCONNECT:
+                    handleDisconnect();
+                    break;
+
+                case MSG_SHUTDOWN:
+                    // the worker stops after this, so don't wait for the
+                    // disconnections to be reported
+                    for (Session s : new ArrayList<>(mSessions.values())) {
+                        s.disconnect();
+                        s.close();
+                    }
+                    break;
             }
         }
     };
@@ -875,11 +1799,14 @@ public class Hm10Service extends Service {
         Log.d(TAG, "onDestroy");
         super.onDestroy();
 
-        // disconnect from any device
-        disconnect();
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mActivityReceiver);
+        EventBus.getDefault().unregister(mSendSubscriber);
+
+        // disconnect from any device and stop the worker once that's done
+        mWorker.send(MSG_SHUTDOWN);
+        mWorker.quit();
 
         sendStatus(ACTION_NOTIFY_DESTROYED);
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mActivityReceiver);
     }
 
     private void setupBLE() {
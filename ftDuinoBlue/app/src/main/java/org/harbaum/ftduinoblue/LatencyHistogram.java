@@ -0,0 +1,88 @@
+package org.harbaum.ftduinoblue;
+
+import java.util.Arrays;
+
+// Distribution of latencies in microseconds.
+//
+// Like HdrHistogram, the values are counted in buckets whose width grows with
+// the value: every power of two is split into 32 buckets, so any value is
+// known with a precision of about 3%. Small values up to 63 are counted
+// exactly. Recording a value just increments a counter and never allocates.
+public class LatencyHistogram {
+    private final static int SUB_BITS = 5;
+    private final static int SUB = 1 << SUB_BITS;
+    private final static int MAX_SHIFT = 31;           // covers values up to about 19 hours
+    private final static int BUCKETS = SUB * (MAX_SHIFT + 2);
+
+    private final int[] mCounts = new int[BUCKETS];
+    private long mCount = 0;
+    private long mSum = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    private static int index(long value) {
+        if (value < 2 * SUB)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        if (shift > MAX_SHIFT)
+            return BUCKETS - 1;
+        return SUB * (shift + 1) + (int) (value >> shift) - SUB;
+    }
+
+    // the highest value counted in a bucket
+    private static long highest(int index) {
+        if (index < 2 * SUB)
+            return index;
+
+        int shift = index / SUB - 1;
+        long mantissa = (index % SUB) + SUB;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        mCounts[index(value)]++;
+        mCount++;
+        mSum += value;
+        if (value < mMin) mMin = value;
+        if (value > mMax) mMax = value;
+    }
+
+    public long count() {
+        return mCount;
+    }
+
+    public long min() {
+        return (mCount > 0) ? mMin : 0;
+    }
+
+    public long max() {
+        return mMax;
+    }
+
+    public long mean() {
+        return (mCount > 0) ? mSum / mCount : 0;
+    }
+
+    // the value the given percentage of all values doesn't exceed
+    public long percentile(double percent) {
+        if (mCount == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * mCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank)
+                return Math.min(highest(i), mMax);
+        }
+        return mMax;
+    }
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = mSum = mMax = 0;
+        mMin = Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,106 @@
+package org.harbaum.ftduinoblue;
+
+import java.util.Locale;
+
+// Latencies of the messages sent to the device per command.
+//
+// Every message is timed from its creation, e.g. the touch event of a button,
+// until it's been queued for transmission, until its first byte has been
+// written and until the write of its last byte has been confirmed. The
+// service records them while the control screen shows and exports them. All
+// methods may thus be called from any thread.
+public class LatencyStats {
+    public final static int QUEUED = 0;
+    public final static int FIRST_WRITTEN = 1;
+    public final static int WRITTEN = 2;
+    private final static String[] STAGES = { "queued", "first written", "written" };
+
+    private final static ControlEvent.Type[] TYPES = ControlEvent.Type.values();
+    private final static double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private static final LatencyStats sDefault = new LatencyStats();
+
+    private final LatencyHistogram[][] mHistograms = new LatencyHistogram[TYPES.length][STAGES.length];
+
+    public static LatencyStats getDefault() {
+        return sDefault;
+    }
+
+    public LatencyStats() {
+        for (LatencyHistogram[] histograms : mHistograms)
+            for (int i = 0; i < histograms.length; i++)
+                histograms[i] = new LatencyHistogram();
+    }
+
+    // record the times of a message, all as returned by System.nanoTime()
+    public synchronized void record(ControlEvent.Type type, long created, long queued,
+                                    long firstWritten, long written) {
+        LatencyHistogram[] histograms = mHistograms[type.ordinal()];
+        histograms[QUEUED].record((queued - created) / 1000);
+        histograms[FIRST_WRITTEN].record((firstWritten - created) / 1000);
+        histograms[WRITTEN].record((written - created) / 1000);
+    }
+
+    public synchronized long count(ControlEvent.Type type) {
+        return mHistograms[type.ordinal()][WRITTEN].count();
+    }
+
+    // the given percentile of a stage in microseconds
+    public synchronized long percentile(ControlEvent.Type type, int stage, double percent) {
+        return mHistograms[type.ordinal()][stage].percentile(percent);
+    }
+
+    public synchronized void reset() {
+        for (LatencyHistogram[] histograms : mHistograms)
+            for (LatencyHistogram histogram : histograms)
+                histogram.reset();
+    }
+
+    private static String ms(long us) {
+        return String.format(Locale.US, "%.1f", us / 1000.0);
+    }
+
+    // a summary to be shown to the user
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        for (ControlEvent.Type type : TYPES) {
+            LatencyHistogram[] histograms = mHistograms[type.ordinal()];
+            if (histograms[WRITTEN].count() == 0)
+                continue;
+
+            sb.append(type).append(" (").append(histograms[WRITTEN].count()).append(")\n");
+            for (int stage = 0; stage < STAGES.length; stage++) {
+                LatencyHistogram h = histograms[stage];
+                sb.append("  ").append(STAGES[stage]).append(": median ").append(ms(h.percentile(50)))
+                        .append(", p99 ").append(ms(h.percentile(99)))
+                        .append(", max ").append(ms(h.max())).append(" ms\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    // all statistics as comma separated values in microseconds
+    public synchronized String csv() {
+        StringBuilder sb = new StringBuilder("command,stage,count,min,mean,p50,p90,p99,p99.9,max\n");
+
+        for (ControlEvent.Type type : TYPES) {
+            for (int stage = 0; stage < STAGES.length; stage++) {
+                LatencyHistogram h = mHistograms[type.ordinal()][stage];
+                if (h.count() == 0)
+                    continue;
+
+                sb.append(type).append(',').append(STAGES[stage]).append(',').append(h.count())
+                        .append(',').append(h.min()).append(',').append(h.mean());
+                for (double p : PERCENTILES)
+                    sb.append(',').append(h.percentile(p));
+                sb.append(',').append(h.max()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report();
+    }
+}
@@ -0,0 +1,190 @@
+package org.harbaum.ftduinoblue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// The layouts received from the devices, stored on disk by device address and
+// a hash of their content.
+//
+// Devices accepting the LAYOUTHASH query report the hash of their layout. If
+// a layout with that hash is cached for the device, it doesn't have to be
+// transferred again. Every layout is a file of its own and only the latest one
+// of each device is kept. The least recently used ones are removed once all of
+// them together exceed the size limit.
+public class LayoutCache {
+    // devices reporting this version or newer understand the LAYOUTHASH query
+    public final static String MIN_VERSION = "1.2.0";
+
+    private final static String SUFFIX = ".xml";
+
+    private final File mDir;
+    private final long mMaxBytes;
+    private long mBytes = 0;
+    private int mHits = 0, mMisses = 0, mEvictions = 0;
+
+    // file name to size, least recently used first
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public LayoutCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+
+        // restore the order of use from the modification times
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                mEntries.put(file.getName(), file.length());
+                mBytes += file.length();
+            }
+        }
+        evict();
+    }
+
+    // 32 bit FNV-1a hash of the UTF-8 encoded layout as eight hex digits. The
+    // devices hash the layout as they send it, without leading and trailing
+    // whitespace
+    public static String hash(String xml) {
+        int hash = 0x811c9dc5;
+        for (byte b : xml.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return String.format(Locale.US, "%08x", hash);
+    }
+
+    private static String prefix(String address) {
+        return address.replace(":", "").toUpperCase(Locale.US) + "-";
+    }
+
+    private static String name(String address, String hash) {
+        return prefix(address) + hash.toLowerCase(Locale.US) + SUFFIX;
+    }
+
+    // true if any layout of the device is cached, so it's worth asking for
+    // the hash of its current one
+    public boolean contains(String address) {
+        String prefix = prefix(address);
+        for (String name : mEntries.keySet())
+            if (name.startsWith(prefix))
+                return true;
+        return false;
+    }
+
+    // the cached layout of the device with the given hash or null
+    public String get(String address, String hash) {
+        String name = name(address, hash);
+        if (mEntries.get(name) == null) {
+            mMisses++;
+            return null;
+        }
+
+        File file = new File(mDir, name);
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                out.write(buffer, 0, n);
+
+            String xml = new String(out.toByteArray(), StandardCharsets.UTF_8);
+            if (!hash(xml).equalsIgnoreCase(hash))
+                throw new IOException("Corrupted " + name);
+
+            file.setLastModified(System.currentTimeMillis());
+            mHits++;
+            return xml;
+        } catch (IOException e) {
+            remove(name);
+            mMisses++;
+            return null;
+        }
+    }
+
+    // store a layout received from a device. It replaces any other layout of
+    // the device. Returns false if it couldn't be written
+    public boolean put(String address, String xml) {
+        String name = name(address, hash(xml));
+        String prefix = prefix(address);
+        for (String other : new ArrayList<>(mEntries.keySet()))
+            if (other.startsWith(prefix))
+                remove(other);
+
+        byte[] data = xml.getBytes(StandardCharsets.UTF_8);
+        if (data.length > mMaxBytes)
+            return false;
+
+        // write to a temporary file first, so a crash never leaves a
+        // truncated layout behind
+        File tmp = new File(mDir, name + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+        } catch (IOException e) {
+            tmp.delete();
+            return false;
+        }
+        if (!tmp.renameTo(new File(mDir, name))) {
+            tmp.delete();
+            return false;
+        }
+
+        mEntries.put(name, (long) data.length);
+        mBytes += data.length;
+        evict();
+        return true;
+    }
+
+    private void remove(String name) {
+        Long size = mEntries.remove(name);
+        if (size != null) {
+            mBytes -= size;
+            new File(mDir, name).delete();
+        }
+    }
+
+    // drop the least recently used layouts until all fit
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while ((mBytes > mMaxBytes) && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            mBytes -= entry.getValue();
+            new File(mDir, entry.getKey()).delete();
+            it.remove();
+            mEvictions++;
+        }
+    }
+
+    public int count() {
+        return mEntries.size();
+    }
+
+    public long bytes() {
+        return mBytes;
+    }
+
+    @Override
+    public String toString() {
+        return mEntries.size() + " layouts, " + mBytes + " bytes, " + mHits + " hits, " +
+                mMisses + " misses, " + mEvictions + " evicted";
+    }
+}
@@ -13,6 +13,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public class LayoutXmlParser {
@@ -63,6 +64,15 @@ public class LayoutXmlParser {
         public Integer bgcolor() {
             return mBgColor;
         }
+
+        // the addresses of further devices items of this layout belong to
+        public List<String> devices() {
+            List<String> devices = new ArrayList<>();
+            for (Item item : mEntries)
+                if ((item.device() != null) && !devices.contains(item.device()))
+                    devices.add(item.device());
+            return devices;
+        }
     }
 
     public Layout parse(InputStream in) throws XmlPullParserException, IOException {
@@ -96,8 +106,7 @@ public class LayoutXmlParser {
                 (name.equalsIgnoreCase("joystick")) ||
                 (name.equalsIgnoreCase("slider"))) {
                 Item item = readItem(parser, name);
-                if(item != null)
-                    layout.mEntries.add(item);
+                if(item != null) layout.mEntries.add(item);
             }
             else {
                 skip(parser);
@@ -114,6 +123,7 @@ public class LayoutXmlParser {
         RelativeLayout.LayoutParams mParam;
         Integer mSize = null;
         boolean mEnabled = true;
+        String mDevice = null;   // null if on the device sending the layout
 
         private Item(int id) {
             mId = id;
@@ -166,10 +176,16 @@ public class LayoutXmlParser {
             String enabled = parser.getAttributeValue(null, "enabled");
             if(enabled != null && enabled.equalsIgnoreCase("false"))
                 mEnabled = false;
+            // items may belong to another device, e.g. device="00:11:22:33:44:55"
+            String device = parser.getAttributeValue(null, "device");
+            if(device != null && !device.trim().isEmpty())
+                mDevice = device.trim().toUpperCase(Locale.US);
         }
 
+        // a copy for every view, so a layout is never changed by the views
+        // created from it and can be used several times
         public RelativeLayout.LayoutParams layoutParams() {
-            return mParam;
+            return new RelativeLayout.LayoutParams(mParam);
         }
 
         private
@@ -226,6 +242,7 @@ public class LayoutXmlParser {
         public Integer size() { return mSize; }
         public boolean enabled() { return mEnabled; }
         public int id() { return mId; }
+        public String device() { return mDevice; }
         public Integer color() { return mColor; }
         public Integer bgcolor() { return mBgColor; }
     }
@@ -0,0 +1,226 @@
+package org.harbaum.ftduinoblue;
+
+// Reassembles the byte stream received via BLE notifications into lines.
+//
+// Incoming chunks are appended to a ring buffer that grows on demand. The scan
+// for the line delimiter continues where the previous scan stopped, so every
+// received byte is looked at only once no matter how many chunks a line is made
+// of. Complete lines are handed out as offset/length views into the ring and
+// stay valid until the next call to nextLine(), append() or clear().
+//
+// Assembly has to take place on bytes rather than on characters since e.g. 16 bit
+// characters may be split over transfer bounds.
+//
+// Lines are limited in length, so line noise without any delimiter can't make
+// the buffer grow without bound. A line exceeding the limit is dropped and
+// everything up to the next delimiter is skipped without even being copied.
+public class LineAssembler {
+    private final static int DEFAULT_CAPACITY = 256;
+    public final static int DEFAULT_MAX_LINE_LENGTH = 16384;
+
+    private byte[] mBuffer;
+    private int mMask;
+
+    // positions are counted in bytes since the last clear() and only
+    // reduced to buffer indices via mMask when accessing the buffer
+    private int mHead = 0;   // first byte of the current (incomplete) line
+    private int mScan = 0;   // first byte not yet checked for a delimiter
+    private int mTail = 0;   // one behind the last byte received
+
+    // the line most recently returned by nextLine()
+    private int mLineStart = 0;
+    private int mLineLength = 0;
+
+    private int mMaxLineLength;
+    private boolean mDiscarding = false;  // skipping bytes up to the next delimiter
+    private long mDroppedBytes = 0;
+    private int mOverflows = 0;
+    private int mResyncs = 0;
+
+    public LineAssembler() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    public LineAssembler(int capacity) {
+        this(capacity, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    public LineAssembler(int capacity, int maxLineLength) {
+        mBuffer = new byte[roundUp(capacity)];
+        mMask = mBuffer.length - 1;
+        mMaxLineLength = maxLineLength;
+    }
+
+    // the max number of bytes of a line including a trailing \r
+    public void setMaxLineLength(int maxLineLength) {
+        mMaxLineLength = maxLineLength;
+    }
+
+    // ring indexing by mask requires the capacity to be a power of two
+    private static int roundUp(int capacity) {
+        int size = 16;
+        while (size < capacity) size <<= 1;
+        return size;
+    }
+
+    public void clear() {
+        mHead = mScan = mTail = 0;
+        mLineStart = mLineLength = 0;
+        mDiscarding = false;
+    }
+
+    public void append(byte[] data) {
+        if (data != null) append(data, 0, data.length);
+    }
+
+    public void append(byte[] data, int offset, int length) {
+        // while skipping an overlong line there's no need to store anything
+        // up to the next delimiter
+        if (mDiscarding && (mScan == mTail)) {
+            int end = offset + length;
+            int pos = offset;
+            while ((pos < end) && (data[pos] != '\n'))
+                pos++;
+
+            if (pos == end) {
+                mDroppedBytes += length;
+                return;
+            }
+
+            pos++;
+            mDroppedBytes += pos - offset;
+            mDiscarding = false;
+            mResyncs++;
+            length = end - pos;
+            offset = pos;
+        }
+
+        ensureCapacity(mTail - mHead + length);
+
+        // copy in at most two parts, one up to the end of the array and
+        // one wrapping around to its start
+        int pos = mTail & mMask;
+        int first = Math.min(length, mBuffer.length - pos);
+        System.arraycopy(data, offset, mBuffer, pos, first);
+        System.arraycopy(data, offset + first, mBuffer, 0, length - first);
+        mTail += length;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= mBuffer.length)
+            return;
+
+        // move the pending bytes to the start of a larger array. Positions stay
+        // valid as they are only relative to mHead
+        byte[] buffer = new byte[roundUp(needed)];
+        int pending = mTail - mHead;
+        for (int i = 0; i < pending; i++)
+            buffer[(mHead + i) & (buffer.length - 1)] = mBuffer[(mHead + i) & mMask];
+
+        mBuffer = buffer;
+        mMask = buffer.length - 1;
+    }
+
+    // search for the next complete line. Returns true and makes the line available
+    // via lineLength() and lineByteAt() if there is one. Empty lines are skipped
+    // and a trailing \r is not included. Lines exceeding the max line length are
+    // dropped.
+    public boolean nextLine() {
+        while (mScan != mTail) {
+            if (mBuffer[mScan & mMask] == '\n') {
+                if (mDiscarding) {
+                    // resync on the delimiter ending the overlong line
+                    mDroppedBytes += ++mScan - mHead;
+                    mHead = mScan;
+                    mDiscarding = false;
+                    mResyncs++;
+                    continue;
+                }
+
+                int length = mScan - mHead;
+                if (length > 0 && mBuffer[(mScan - 1) & mMask] == '\r')
+                    length--;
+
+                mLineStart = mHead;
+                mLineLength = length;
+                mHead = ++mScan;
+
+                if (length > 0)
+                    return true;
+            } else if ((++mScan - mHead > mMaxLineLength) || mDiscarding) {
+                // line too long, drop what has been received of it
+                if (!mDiscarding) mOverflows++;
+                mDroppedBytes += mScan - mHead;
+                mHead = mScan;
+                mDiscarding = true;
+            }
+        }
+
+        mLineLength = 0;
+        return false;
+    }
+
+    public int lineLength() {
+        return mLineLength;
+    }
+
+    public byte lineByteAt(int index) {
+        return mBuffer[(mLineStart + index) & mMask];
+    }
+
+    // copy the current line into the given array which must be large enough
+    public void copyLine(byte[] dst, int offset, int length) {
+        copy(mLineStart, dst, offset, length);
+    }
+
+    // copy a part of the current line starting at the given index
+    public void copyLine(int index, byte[] dst, int offset, int length) {
+        copy(mLineStart + index, dst, offset, length);
+    }
+
+    // copy a part of the incomplete line starting at the given index
+    public void copyPending(int index, byte[] dst, int offset, int length) {
+        copy(mHead + index, dst, offset, length);
+    }
+
+    private void copy(int position, byte[] dst, int offset, int length) {
+        int pos = position & mMask;
+        int first = Math.min(length, mBuffer.length - pos);
+        System.arraycopy(mBuffer, pos, dst, offset, first);
+        System.arraycopy(mBuffer, 0, dst, offset + first, length - first);
+    }
+
+    // number of bytes received that don't form a complete line yet
+    public int pending() {
+        return mTail - mHead;
+    }
+
+    // access the bytes of the incomplete line. The indices of a line stay the same
+    // once it has been completed and is returned by nextLine()
+    public byte pendingByteAt(int index) {
+        return mBuffer[(mHead + index) & mMask];
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    // true while skipping the rest of an overlong line
+    public boolean isDiscarding() {
+        return mDiscarding;
+    }
+
+    // number of lines dropped for exceeding the max line length
+    public int overflows() {
+        return mOverflows;
+    }
+
+    // number of times reception resynced on a delimiter after an overflow
+    public int resyncs() {
+        return mResyncs;
+    }
+
+    public long droppedBytes() {
+        return mDroppedBytes;
+    }
+}
@@ -0,0 +1,69 @@
+package org.harbaum.ftduinoblue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Collects the messages received from the device between two display frames.
+//
+// A device may update a label or a slider much faster than the display is able
+// to show it. Only the latest update per element and property is kept, so each
+// view is touched at most once per frame no matter how many updates arrived.
+// Updates for different elements or properties are applied in the order they
+// were first received.
+public class MessageCoalescer {
+    private final LinkedHashMap<Long, DeviceCommand> mPending = new LinkedHashMap<>();
+    private long mSequence = 0;       // makes messages without an element unique
+    private long mReceived = 0;
+    private long mCoalesced = 0;
+
+    // the property of an element a command changes. Enabling and disabling
+    // change the same property, so the later one wins
+    private static int property(DeviceCommand cmd) {
+        if (cmd.type() == DeviceCommand.Type.DISABLE)
+            return DeviceCommand.Type.ENABLE.ordinal();
+        return cmd.type().ordinal();
+    }
+
+    // returns true if this is the first message since the last drain and
+    // applying the messages thus needs to be scheduled
+    public boolean add(DeviceCommand cmd) {
+        boolean first = mPending.isEmpty();
+        long key;
+
+        mReceived++;
+        if (cmd.id() >= 0)
+            key = ((long) cmd.id() << 8) | property(cmd);
+        else
+            // never coalesce messages not referring to an element
+            key = -(++mSequence);
+
+        if (mPending.put(key, cmd) != null)
+            mCoalesced++;
+
+        return first;
+    }
+
+    // move all pending messages into the given list
+    public void drainTo(List<DeviceCommand> list) {
+        list.addAll(mPending.values());
+        mPending.clear();
+    }
+
+    public int pending() {
+        return mPending.size();
+    }
+
+    public long received() {
+        return mReceived;
+    }
+
+    // number of messages replaced by a later one before being applied
+    public long coalesced() {
+        return mCoalesced;
+    }
+
+    @Override
+    public String toString() {
+        return "received " + mReceived + ", coalesced " + mCoalesced;
+    }
+}
@@ -0,0 +1,93 @@
+package org.harbaum.ftduinoblue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// Holds back slider and joystick updates while the link is busy.
+//
+// Once queued for transmission a message can't be taken back anymore. A slow
+// link would thus make the device follow positions that are long outdated.
+// Instead, updates of continuous controls are only handed over for transmission
+// while nothing else is being sent. Until then at most one update per element
+// is kept and replaced by newer ones. Updates repeating the value last sent for
+// an element are dropped. Discrete events like button presses are never held
+// back or dropped.
+//
+// A value only counts as sent once it has been reported by delivered(). The
+// transmit queue may still drop it, and the next update with the same value
+// must not be suppressed then.
+public class OutboundCoalescer {
+    private final LinkedHashMap<Long, ControlEvent> mPending = new LinkedHashMap<>();
+    private final HashMap<Long, ControlEvent> mDelivered = new HashMap<>();
+    private int mCoalesced = 0;
+    private int mSuppressed = 0;
+
+    private static long key(ControlEvent event) {
+        return ((long) event.type().ordinal() << 32) | (event.id() & 0xffffffffL);
+    }
+
+    // returns true if the event is to be sent right away. Otherwise it has been
+    // held back or dropped
+    public boolean offer(ControlEvent event, boolean busy) {
+        if (!event.isContinuous())
+            return true;
+
+        long key = key(event);
+        if (event.sameValue(mDelivered.get(key))) {
+            // the device already has this value. Anything pending is outdated now
+            mPending.remove(key);
+            mSuppressed++;
+            return false;
+        }
+
+        if (busy || mPending.containsKey(key)) {
+            if (mPending.put(key, event) != null)
+                mCoalesced++;
+            return false;
+        }
+        return true;
+    }
+
+    // take out the oldest update held back, to be sent now
+    public ControlEvent poll() {
+        Iterator<ControlEvent> it = mPending.values().iterator();
+        if (!it.hasNext())
+            return null;
+
+        ControlEvent event = it.next();
+        it.remove();
+        return event;
+    }
+
+    // the event has been accepted for transmission
+    public void delivered(ControlEvent event) {
+        if (event.isContinuous())
+            mDelivered.put(key(event), event);
+    }
+
+    public int pending() {
+        return mPending.size();
+    }
+
+    // forget everything, e.g. for a new connection
+    public void clear() {
+        mPending.clear();
+        mDelivered.clear();
+    }
+
+    // number of updates replaced by newer ones before being sent
+    public int coalesced() {
+        return mCoalesced;
+    }
+
+    // number of updates dropped for repeating the value last sent
+    public int suppressed() {
+        return mSuppressed;
+    }
+
+    @Override
+    public String toString() {
+        return "coalesced " + mCoalesced + ", suppressed " + mSuppressed;
+    }
+}
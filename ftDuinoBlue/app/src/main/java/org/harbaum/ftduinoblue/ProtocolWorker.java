@@ -0,0 +1,126 @@
+package org.harbaum.ftduinoblue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A single thread owning all protocol state of the Hm10Service. GATT callbacks
+// arrive on binder threads and requests from the activities on the main thread.
+// Both are turned into messages and processed one after another here, so the
+// receive and transmit state needs no further synchronization and the framing
+// work is kept off the main thread.
+//
+// The worker keeps track of how many messages are waiting and how long they
+// waited before being processed, so it can be seen when it falls behind.
+public class ProtocolWorker implements Handler.Callback {
+    private final static String TAG = ProtocolWorker.class.getSimpleName();
+
+    // messages waiting longer than this are counted as late
+    private final static long LATE_THRESHOLD_MS = 50;
+
+    public interface Processor {
+        void process(Message msg);
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Processor mProcessor;
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private volatile int mMaxQueueDepth = 0;
+    private volatile long mProcessed = 0;
+    private volatile long mLate = 0;
+    private volatile long mTotalLatency = 0;
+    private volatile long mMaxLatency = 0;
+
+    public ProtocolWorker(String name, Processor processor) {
+        mProcessor = processor;
+        mThread = new HandlerThread(name, Process.THREAD_PRIORITY_FOREGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), this);
+    }
+
+    // queue a message for processing on the worker thread
+    public boolean send(int what, int arg1, int arg2, Object obj) {
+        int depth = mQueueDepth.incrementAndGet();
+        if (depth > mMaxQueueDepth) mMaxQueueDepth = depth;
+
+        if (!mHandler.sendMessage(mHandler.obtainMessage(what, arg1, arg2, obj))) {
+            // the worker has already been shut down
+            mQueueDepth.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public boolean send(int what, Object obj) {
+        return send(what, 0, 0, obj);
+    }
+
+    public boolean send(int what) {
+        return send(what, 0, 0, null);
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        mQueueDepth.decrementAndGet();
+
+        // getWhen() is the uptime at which the message was queued
+        long latency = SystemClock.uptimeMillis() - msg.getWhen();
+        mTotalLatency += latency;
+        if (latency > mMaxLatency) mMaxLatency = latency;
+        if (latency > LATE_THRESHOLD_MS) {
+            mLate++;
+            Log.w(TAG, "Message " + msg.what + " waited " + latency + "ms, queue depth " + mQueueDepth.get());
+        }
+
+        mProcessor.process(msg);
+        mProcessed++;
+        return true;
+    }
+
+    // handler for timeouts that need to run on the worker thread
+    public Handler handler() {
+        return mHandler;
+    }
+
+    public boolean isCurrentThread() {
+        return Looper.myLooper() == mThread.getLooper();
+    }
+
+    // guard for methods touching the state owned by the worker. Debug builds
+    // fail right away if one of them is called from another thread
+    public void checkThread() {
+        if (BuildConfig.DEBUG && !isCurrentThread())
+            throw new IllegalStateException("Called on " + Thread.currentThread().getName() +
+                    " instead of the protocol worker");
+    }
+
+    // process everything already queued and stop the thread
+    public void quit() {
+        mThread.quitSafely();
+    }
+
+    public int queueDepth() { return mQueueDepth.get(); }
+    public int maxQueueDepth() { return mMaxQueueDepth; }
+    public long processed() { return mProcessed; }
+    public long lateMessages() { return mLate; }
+    public long maxLatency() { return mMaxLatency; }
+
+    public long averageLatency() {
+        long processed = mProcessed;
+        return (processed > 0) ? mTotalLatency / processed : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "processed " + processed() + ", queue depth " + queueDepth() + " (max " + maxQueueDepth() +
+                "), latency avg " + averageLatency() + "ms max " + maxLatency() + "ms, late " + lateMessages();
+    }
+}
@@ -0,0 +1,91 @@
+package org.harbaum.ftduinoblue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The devices connected to most recently, newest first.
+//
+// The list is stored across restarts of the app. The devices on it can be
+// connected to right away by their address without waiting for a scan to
+// find them again.
+public class RecentDevices {
+    public static class Device {
+        public final String address;
+        public final String name;    // may be null
+
+        Device(String address, String name) {
+            this.address = address;
+            this.name = name;
+        }
+    }
+
+    private final int mMax;
+    private final List<Device> mDevices = new ArrayList<>();
+
+    public RecentDevices(int max) {
+        mMax = max;
+    }
+
+    private int indexOf(String address) {
+        for (int i = 0; i < mDevices.size(); i++)
+            if (mDevices.get(i).address.equalsIgnoreCase(address))
+                return i;
+        return -1;
+    }
+
+    // a device has been connected to. A device without a name keeps the one
+    // it had before. The oldest device is dropped if there are too many
+    public void add(String address, String name) {
+        int i = indexOf(address);
+        if (i >= 0) {
+            Device old = mDevices.remove(i);
+            if ((name == null) || name.isEmpty())
+                name = old.name;
+        }
+
+        mDevices.add(0, new Device(address, name));
+        while (mDevices.size() > mMax)
+            mDevices.remove(mDevices.size() - 1);
+    }
+
+    public boolean contains(String address) {
+        return indexOf(address) >= 0;
+    }
+
+    public List<Device> devices() {
+        return mDevices;
+    }
+
+    public int size() {
+        return mDevices.size();
+    }
+
+    // one device per line with address and name separated by a tab
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (Device device : mDevices) {
+            sb.append(device.address).append('\t');
+            if (device.name != null)
+                sb.append(device.name.replace('\t', ' ').replace('\n', ' '));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    // replace the list by an encoded one. Broken lines are skipped
+    public void decode(String s) {
+        mDevices.clear();
+        if (s == null)
+            return;
+
+        for (String line : s.split("\n")) {
+            int tab = line.indexOf('\t');
+            if (tab <= 0)
+                continue;
+
+            String name = line.substring(tab + 1);
+            if (mDevices.size() < mMax)
+                mDevices.add(new Device(line.substring(0, tab), name.isEmpty() ? null : name));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.harbaum.ftduinoblue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Keeps track of the requests sent to the device and waiting for their reply.
+//
+// Several requests may be in flight at once. A reply is matched to the oldest
+// request of the same command name. Requests may carry a tag to tell several
+// requests of the same name apart if the reply carries it as well. Every
+// request has a deadline of its own and is sent again when it passes, until
+// its retries are used up.
+//
+// The time to wait for a reply is taken from an RttEstimator fed with the
+// replies received. Long replies like the layout take a while to arrive, so
+// the first bytes of a reply count as its round trip and every further byte
+// postpones the deadline.
+//
+// All times are in milliseconds.
+public class RequestTable {
+    public final static int NO_TAG = -1;
+
+    public static class Request {
+        public final String name;      // the command name of the expected reply
+        public final String message;   // the message to send again on timeout
+        public final int tag;
+        private final long mSent;
+        private long mDeadline;
+        private int mRetries;
+        private boolean mSampled = false;   // sampled already or sent again
+
+        private Request(String message, int tag, long now, long deadline, int retries) {
+            int space = message.indexOf(' ');
+            this.name = (space < 0) ? message : message.substring(0, space);
+            this.message = message;
+            this.tag = tag;
+            mSent = now;
+            mDeadline = deadline;
+            mRetries = retries;
+        }
+
+        public long deadline() {
+            return mDeadline;
+        }
+
+        public int retries() {
+            return mRetries;
+        }
+
+        @Override
+        public String toString() {
+            return (tag == NO_TAG) ? message : message + " #" + tag;
+        }
+    }
+
+    private final RttEstimator mRtt = new RttEstimator();
+    private final int mRetries;
+    private final List<Request> mRequests = new ArrayList<>();
+
+    private int mTimeouts = 0;
+
+    // every request is given tries attempts
+    public RequestTable(int tries) {
+        mRetries = tries;
+    }
+
+    // the round trip time learned. It's kept across reconnects of a session
+    public RttEstimator rtt() {
+        return mRtt;
+    }
+
+    public Request add(String message, long now) {
+        return add(message, NO_TAG, now);
+    }
+
+    public Request add(String message, int tag, long now) {
+        Request request = new Request(message, tag, now, now + mRtt.rto(), mRetries);
+        mRequests.add(request);
+        return request;
+    }
+
+    // take out the request a reply with the given name belongs to. Returns null
+    // if no such request is waiting
+    public Request match(String name, long now) {
+        return match(name, NO_TAG, now);
+    }
+
+    public Request match(String name, int tag, long now) {
+        for (int i = 0; i < mRequests.size(); i++) {
+            Request request = mRequests.get(i);
+            if (request.name.equals(name) && ((tag == NO_TAG) || (tag == request.tag))) {
+                sample(request, now);
+                return mRequests.remove(i);
+            }
+        }
+        return null;
+    }
+
+    private void sample(Request request, long now) {
+        if (!request.mSampled) {
+            request.mSampled = true;
+            mRtt.sample(now - request.mSent);
+        }
+    }
+
+    public boolean isPending(String name) {
+        for (Request request : mRequests)
+            if (request.name.equals(name))
+                return true;
+        return false;
+    }
+
+    // the reply to a request is being received. Give it another timeout period
+    // to complete, so it's not requested again meanwhile
+    public void extend(String name, long now) {
+        for (Request request : mRequests) {
+            if (request.name.equals(name)) {
+                sample(request, now);
+                request.mDeadline = Math.max(request.mDeadline, now + mRtt.rto());
+                return;
+            }
+        }
+    }
+
+    // check if the incomplete line in the assembler is the reply to a request
+    // and extend its deadline if so
+    public void extend(LineAssembler assembler, long now) {
+        int pending = assembler.pending();
+        for (Request request : mRequests) {
+            int length = request.name.length();
+            if (pending <= length)
+                continue;
+
+            boolean match = assembler.pendingByteAt(length) == ' ';
+            for (int i = 0; match && (i < length); i++)
+                match = assembler.pendingByteAt(i) == request.name.charAt(i);
+            if (match) {
+                extend(request.name, now);
+                return;
+            }
+        }
+    }
+
+    // take the requests whose deadline has passed. Those with retries left are
+    // given another deadline and are to be sent again. The others have been
+    // removed and failed. Requests expiring together are a single timeout of
+    // the timer, so the timeout is backed off only once as RFC 6298 (5.5) has it
+    public List<Request> expired(long now) {
+        List<Request> expired = new ArrayList<>();
+        for (Request request : mRequests)
+            if (request.mDeadline <= now)
+                expired.add(request);
+        if (expired.isEmpty())
+            return expired;
+
+        mRtt.backoff();
+        for (Request request : expired) {
+            mTimeouts++;
+            request.mSampled = true;
+            if (--request.mRetries <= 0)
+                mRequests.remove(request);
+            else
+                request.mDeadline = now + mRtt.rto();
+        }
+        return expired;
+    }
+
+    // time until the next deadline or -1 if no request is waiting
+    public long nextDeadline(long now) {
+        long next = -1;
+        for (Request request : mRequests) {
+            long delay = Math.max(0, request.mDeadline - now);
+            if ((next < 0) || (delay < next))
+                next = delay;
+        }
+        return next;
+    }
+
+    public int size() {
+        return mRequests.size();
+    }
+
+    public int timeouts() {
+        return mTimeouts;
+    }
+
+    public void clear() {
+        mRequests.clear();
+    }
+
+    @Override
+    public String toString() {
+        return mRequests.size() + " pending " + mRequests + ", " + mTimeouts + " timeouts, " + mRtt;
+    }
+}
@@ -0,0 +1,68 @@
+package org.harbaum.ftduinoblue;
+
+// Estimates the round trip time to the device and derives the time to wait
+// for a reply before a request is sent again.
+//
+// This follows TCP's retransmission timer as specified in RFC 6298: the
+// smoothed round trip time and its variation are updated with every sample
+// and the timeout is the former plus four times the latter. Every timeout
+// doubles it until the next sample arrives. Only replies to requests that
+// were sent once must be sampled, since the reply to a request sent again
+// can't be told apart from the reply to its first attempt (Karn's rule).
+//
+// All times are in milliseconds.
+public class RttEstimator {
+    public final static long INITIAL_RTO = 1000;
+    public final static long MIN_RTO = 200;
+    public final static long MAX_RTO = 10000;
+    private final static long GRANULARITY = 10;   // of the clock used
+
+    private long mSrtt = -1;     // smoothed round trip time, -1 before the first sample
+    private long mRttvar = 0;    // round trip time variation
+    private long mRto = INITIAL_RTO;
+    private int mSamples = 0;
+    private int mBackoffs = 0;
+
+    public void reset() {
+        mSrtt = -1;
+        mRttvar = 0;
+        mRto = INITIAL_RTO;
+        mSamples = mBackoffs = 0;
+    }
+
+    public void sample(long rtt) {
+        if (mSrtt < 0) {
+            mSrtt = rtt;
+            mRttvar = rtt / 2;
+        } else {
+            mRttvar = (3 * mRttvar + Math.abs(mSrtt - rtt)) / 4;
+            mSrtt = (7 * mSrtt + rtt) / 8;
+        }
+        mRto = Math.min(MAX_RTO, Math.max(MIN_RTO, mSrtt + Math.max(GRANULARITY, 4 * mRttvar)));
+        mSamples++;
+    }
+
+    // a request timed out
+    public void backoff() {
+        mRto = Math.min(MAX_RTO, 2 * mRto);
+        mBackoffs++;
+    }
+
+    public long rto() {
+        return mRto;
+    }
+
+    public long srtt() {
+        return mSrtt;
+    }
+
+    public long rttvar() {
+        return mRttvar;
+    }
+
+    @Override
+    public String toString() {
+        return "srtt " + mSrtt + "ms, rttvar " + mRttvar + "ms, rto " + mRto + "ms from " +
+                mSamples + " samples, " + mBackoffs + " backoffs";
+    }
+}
@@ -12,14 +12,17 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.text.method.LinkMovementMethod;
 import android.text.util.Linkify;
 import android.util.Log;
@@ -73,29 +76,12 @@ public class ScanActivity extends AppCompatActivity implements DeviceViewAdapter
                     getLocationAccess();
                     break;
 
-                case Hm10Service.ACTION_NOTIFY_DEVICE:
-                    // hide "no device found" text once the first device has been found
-                    if(adapter.getItemCount() == 0)
-                        findViewById(R.id.initLayout).setVisibility(View.GONE);
-
-                    String name = intent.getStringExtra("name");
-                    String addr = intent.getStringExtra("addr");
-                    Log.d(TAG, "GOT DEVICE " + name + " " + addr);
-                    adapter.append(name, addr);
-                    break;
-
-                case Hm10Service.ACTION_DISCONNECTED:
-                    // usually this needs not special action. But this may happen
-                    // while connecting. In that case we need to re-enabled scanning
-                    adapter.setBusy(-1);
-                    findViewById(R.id.scanningBar).setVisibility(View.VISIBLE);
-                    sendRequest(Hm10Service.ACTION_START_SCAN);
-                    break;
-
                 case Hm10Service.ACTION_NOTIFY_DESTROYED:
                     Log.d(TAG,"hm10 service is gone");
                     // the hm10 service has sent a notification that it has been
-                    // destroyed. Assume any connection to be gone.
+                    // destroyed. Assume any connection to be gone. The binding
+                    // is connected again once the service is started anew
+                    mService = null;
                     findViewById(R.id.scanningBar).setVisibility(View.GONE);
                     adapter.setBusy(-1);
                     adapter.clearList();  // forget everything about devices already detected
@@ -126,15 +112,6 @@ public class ScanActivity extends AppCompatActivity implements DeviceViewAdapter
                     alertFailDialog.show();
                     break;
 
-                case Hm10Service.ACTION_NOTIFY_LAYOUT:
-                    String layout = intent.getStringExtra("layout");
-                    boolean demo = intent.getBooleanExtra("demo", false);
-                    Intent launchIntent = new Intent(ScanActivity.this, ControlActivity.class);
-                    launchIntent.putExtra("layout", layout);  // the layout as XML string
-                    launchIntent.putExtra("demo", demo);      // boolean whether this is a builtin demo layout
-                    startActivity(launchIntent);
-                    break;
-
                 default:
                     Log.w(TAG, "Unexpected inteent: " + intent);
                     break;
@@ -142,6 +119,64 @@ public class ScanActivity extends AppCompatActivity implements DeviceViewAdapter
         }
     };
 
+    private final EventBus.Subscriber<EventBus.DeviceFound> mDeviceSubscriber =
+            new EventBus.Subscriber<EventBus.DeviceFound>() {
+        @Override
+        public void onEvent(EventBus.DeviceFound event) {
+            // hide "no device found" text once the first device has been found
+            if(adapter.getItemCount() == 0)
+                findViewById(R.id.initLayout).setVisibility(View.GONE);
+
+            Log.d(TAG, "GOT DEVICE " + event.name + " " + event.address);
+            adapter.append(event.name, event.address);
+        }
+    };
+
+    private final EventBus.Subscriber<EventBus.Disconnected> mDisconnectedSubscriber =
+            new EventBus.Subscriber<EventBus.Disconnected>() {
+        @Override
+        public void onEvent(EventBus.Disconnected event) {
+            // further devices of a layout don't matter here
+            if (event.device != null)
+                return;
+
+            // usually this needs not special action. But this may happen
+            // while connecting. In that case we need to re-enabled scanning
+            adapter.setBusy(-1);
+            findViewById(R.id.scanningBar).setVisibility(View.VISIBLE);
+            sendRequest(Hm10Service.ACTION_START_SCAN);
+        }
+    };
+
+    private final EventBus.Subscriber<EventBus.Layout> mLayoutSubscriber =
+            new EventBus.Subscriber<EventBus.Layout>() {
+        @Override
+        public void onEvent(EventBus.Layout event) {
+            Intent launchIntent = new Intent(ScanActivity.this, ControlActivity.class);
+            launchIntent.putExtra("layout", event.xml);  // the layout as XML string
+            launchIntent.putExtra("layout_id", event.id); // to get the parsed layout from the service
+            launchIntent.putExtra("demo", event.demo);   // boolean whether this is a builtin demo layout
+            startActivity(launchIntent);
+        }
+    };
+
+    // the Hm10Service once it has been started and bound to. Until then
+    // requests are sent as broadcasts
+    private Hm10Service.LocalBinder mService = null;
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            Log.d(TAG, "service bound");
+            mService = (Hm10Service.LocalBinder) service;
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            Log.d(TAG, "service unbound");
+            mService = null;
+        }
+    };
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -229,6 +264,11 @@ public class ScanActivity extends AppCompatActivity implements DeviceViewAdapter
         sendRequest(Hm10Service.ACTION_NOTIFY_GONE);
         super.onDestroy();
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mHm10ServiceReceiver);
+        unbindService(mServiceConnection);
+        mService = null;
+        EventBus.getDefault().unregister(mDeviceSubscriber);
+        EventBus.getDefault().unregister(mDisconnectedSubscriber);
+        EventBus.getDefault().unregister(mLayoutSubscriber);
     }
 
     // callback after "enable bluetooth?" dialog.
@@ -278,7 +318,9 @@ public class ScanActivity extends AppCompatActivity implements DeviceViewAdapter
     @Override
     public void onItemClick(View view, final int position) {
         // make sure we don't start another connection while one is in progress
-        if(!adapter.isBusy()) {
+        if(!adapter.isBusy() && ((mService == null) ||
+                (mService.getState() == ConnectionStateMachine.State.IDLE) ||
+                (mService.getState() == ConnectionStateMachine.State.SCANNING))) {
             // check if address starts with "de:30:c0:de" as this indicates that we run a demo
             if(!adapter.getDevice(position).startsWith("de:30:c0:de"))
                 Toast.makeText(this, "Connecting " + adapter.getDevice(position), Toast.LENGTH_SHORT).show();
@@ -288,8 +330,11 @@ public class ScanActivity extends AppCompatActivity implements DeviceViewAdapter
 
             adapter.setBusy(position);
 
-            sendRequest(Hm10Service.ACTION_CONNECT, new HashMap<String, String>()
-                {{ put("addr", adapter.getDevice(position)); }});
+            if(mService != null)
+                mService.connect(adapter.getDevice(position));
+            else
+                sendRequest(Hm10Service.ACTION_CONNECT, new HashMap<String, String>()
+                    {{ put("addr", adapter.getDevice(position)); }});
         } else
             Log.d(TAG, "Already connecting!");
     }
@@ -300,12 +345,13 @@ public class ScanActivity extends AppCompatActivity implements DeviceViewAdapter
         filter.addAction(Hm10Service.ACTION_REQUEST_BLUETOOTH);
         filter.addAction(Hm10Service.ACTION_REQUEST_LOCATION);
         filter.addAction(Hm10Service.ACTION_NOTIFY_INITIALIZED);
-        filter.addAction(Hm10Service.ACTION_NOTIFY_DEVICE);
         filter.addAction(Hm10Service.ACTION_NOTIFY_INFORMATION);
-        filter.addAction(Hm10Service.ACTION_DISCONNECTED);
-        filter.addAction(Hm10Service.ACTION_NOTIFY_LAYOUT);
         filter.addAction(Hm10Service.ACTION_NOTIFY_DESTROYED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mHm10ServiceReceiver, filter);
+
+        EventBus.getDefault().register(EventBus.DeviceFound.class, mDeviceSubscriber, getMainLooper());
+        EventBus.getDefault().register(EventBus.Disconnected.class, mDisconnectedSubscriber, getMainLooper());
+        EventBus.getDefault().register(EventBus.Layout.class, mLayoutSubscriber, getMainLooper());
     }
 
     @Override
@@ -329,6 +375,9 @@ public class ScanActivity extends AppCompatActivity implements DeviceViewAdapter
 
         setFilters();  // Start listening to broadcast notifications e.g. from Hm10Service
 
+        // the service is started in onResume(). The binding connects once it's running
+        bindService(new Intent(this, Hm10Service.class), mServiceConnection, 0);
+
         setContentView(R.layout.activity_scan);
 
         // get list of already detected devices if present
@@ -0,0 +1,265 @@
+package org.harbaum.ftduinoblue;
+
+import android.os.Handler;
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+// Parses the xml of a LAYOUT reply while it is still being received.
+//
+// A multi kilobyte layout takes seconds to arrive over BLE. Instead of waiting
+// for the complete line, the bytes of the incomplete line are fed into a pull
+// parser running on its own thread as soon as they arrive. Items are created
+// during the transfer, so the layout is available almost immediately once the
+// line is complete.
+//
+// The bytes fed haven't been verified by the checksum yet. An xml error found
+// while the line is still arriving may thus be a transfer error as well. It
+// only stops parsing, and it's up to the caller to report it once the
+// complete line has been verified.
+public class StreamingLayoutParser {
+    private final static String TAG = StreamingLayoutParser.class.getSimpleName();
+
+    // the command name, matched ignoring case like the CommandScanner does
+    private final static String NAME = "LAYOUT";
+
+    // the ":XX" checksum and an optional \r at the end of the line must not be
+    // fed into the parser before the end of the line is known
+    private final static int HOLDBACK = 4;
+
+    // called on the thread of the handler once the parser has stopped
+    public interface Callback {
+        void onParsed(StreamingLayoutParser parser);
+    }
+
+    private final FeedInputStream mStream = new FeedInputStream();
+    private final float mScale;
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private Thread mThread = null;
+    private int mFed = 0;         // number of bytes of the line already fed
+    private int mOverflows = 0;   // overflows of the assembler when parsing started
+    private boolean mTooLong = false;
+
+    private volatile boolean mDone = false;
+    private volatile LayoutXmlParser.Layout mLayout = null;
+    private volatile Exception mError = null;
+
+    public StreamingLayoutParser(float scale, Handler handler, Callback callback) {
+        mScale = scale;
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    private final Runnable mParsed = new Runnable() {
+        @Override
+        public void run() {
+            mCallback.onParsed(StreamingLayoutParser.this);
+        }
+    };
+
+    private void start(LineAssembler assembler, int start) {
+        mFed = start;
+        mOverflows = assembler.overflows();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LayoutXmlParser parser = new LayoutXmlParser();
+                parser.setScale(mScale);
+
+                try {
+                    mLayout = parser.parse(mStream);
+                } catch (XmlPullParserException | IOException | RuntimeException e) {
+                    if (!mStream.isAborted()) {
+                        Log.d(TAG, "Streaming parse failed: " + e);
+                        mError = e;
+                    }
+                }
+
+                mDone = true;
+                mHandler.post(mParsed);
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    public boolean isStarted() {
+        return mThread != null;
+    }
+
+    // the index the xml of a LAYOUT reply starts at in the incomplete line,
+    // -1 if it isn't one or that's not known yet. Whitespace is skipped like
+    // the CommandScanner does
+    private static int xmlStart(LineAssembler assembler, int pending) {
+        int i = 0;
+        while ((i < pending) && (assembler.pendingByteAt(i) <= ' ') && (assembler.pendingByteAt(i) >= 0)) i++;
+        if (pending - i <= NAME.length())
+            return -1;
+
+        for (int k = 0; k < NAME.length(); k++, i++)
+            if (Character.toUpperCase((char) assembler.pendingByteAt(i)) != NAME.charAt(k))
+                return -1;
+        if (assembler.pendingByteAt(i) != ' ')
+            return -1;
+
+        while ((i < pending) && (assembler.pendingByteAt(i) <= ' ') && (assembler.pendingByteAt(i) >= 0)) i++;
+        return (i < pending) ? i : -1;
+    }
+
+    // feed the incomplete line of the assembler. Parsing starts once the line
+    // turns out to be a LAYOUT reply
+    public void feedPending(LineAssembler assembler) {
+        int pending = assembler.pending();
+
+        if (mThread == null) {
+            int start = xmlStart(assembler, pending);
+            if (start < 0)
+                return;
+            start(assembler, start);
+        } else if (isDropped(assembler) || (mError != null) || isAborted())
+            return;
+
+        int end = pending - HOLDBACK;
+        if (end > mFed) {
+            mStream.feed(assembler, true, mFed, end - mFed);
+            mFed = end;
+        }
+    }
+
+    // feed the rest of the now complete line without its checksum
+    public void feedLine(LineAssembler assembler) {
+        if (isDropped(assembler))
+            return;
+
+        int end = assembler.lineLength() - 3;
+        if ((end > mFed) && (mError == null)) {
+            mStream.feed(assembler, false, mFed, end - mFed);
+            mFed = end;
+        }
+        mStream.finish();
+    }
+
+    // the line being parsed has been dropped by the assembler for being too long
+    private boolean isDropped(LineAssembler assembler) {
+        if (assembler.overflows() == mOverflows)
+            return false;
+
+        if (!mTooLong) {
+            mTooLong = true;
+            mStream.abort();
+        }
+        return true;
+    }
+
+    // true if the layout doesn't fit into a line. It's of no use to request
+    // it again then
+    public boolean isTooLong() {
+        return mTooLong;
+    }
+
+    // the error if the xml received so far turned out to be invalid. The
+    // line may have been broken during transfer, though
+    public Exception error() {
+        return mError;
+    }
+
+    // true once the parser has stopped. The callback is called afterwards
+    public boolean isDone() {
+        return mDone;
+    }
+
+    // the layout once parsing has succeeded, null otherwise
+    public LayoutXmlParser.Layout result() {
+        return mLayout;
+    }
+
+    // stop parsing, e.g. because the line was broken
+    public void abort() {
+        mStream.abort();
+    }
+
+    public boolean isAborted() {
+        return mStream.isAborted();
+    }
+
+    // An input stream fed from another thread. Reading blocks until data is
+    // available or the stream has been finished or aborted. The bytes are
+    // copied from the assembler in bulk into a buffer that's reused for the
+    // whole line and only grows if the parser falls behind.
+    private static class FeedInputStream extends InputStream {
+        private byte[] mBuffer = new byte[1024];
+        private int mStart = 0;   // first byte not read yet
+        private int mEnd = 0;     // one behind the last byte fed
+        private boolean mFinished = false;
+        private boolean mAborted = false;
+
+        // feed bytes of the incomplete or of the completed line
+        synchronized void feed(LineAssembler assembler, boolean pending, int index, int length) {
+            if (mEnd + length > mBuffer.length) {
+                int available = mEnd - mStart;
+                byte[] buffer = mBuffer;
+                if (available + length > mBuffer.length)
+                    buffer = new byte[Math.max(2 * mBuffer.length, available + length)];
+                System.arraycopy(mBuffer, mStart, buffer, 0, available);
+                mBuffer = buffer;
+                mStart = 0;
+                mEnd = available;
+            }
+
+            if (pending)
+                assembler.copyPending(index, mBuffer, mEnd, length);
+            else
+                assembler.copyLine(index, mBuffer, mEnd, length);
+            mEnd += length;
+            notifyAll();
+        }
+
+        synchronized void finish() {
+            mFinished = true;
+            notifyAll();
+        }
+
+        synchronized void abort() {
+            mAborted = true;
+            notifyAll();
+        }
+
+        synchronized boolean isAborted() {
+            return mAborted;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+
+            while (mStart == mEnd) {
+                if (mAborted)
+                    throw new InterruptedIOException("Layout transfer aborted");
+                if (mFinished)
+                    return -1;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (mAborted)
+                throw new InterruptedIOException("Layout transfer aborted");
+
+            int n = Math.min(len, mEnd - mStart);
+            System.arraycopy(mBuffer, mStart, b, off, n);
+            mStart += n;
+            return n;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+    }
+}
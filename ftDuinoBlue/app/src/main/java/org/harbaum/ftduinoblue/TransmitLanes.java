@@ -0,0 +1,280 @@
+package org.harbaum.ftduinoblue;
+
+import java.util.Arrays;
+
+// Schedules the frames to be sent to the device by priority.
+//
+// Every lane is a TransmitQueue of its own. Chunks are taken from the most
+// important lane with frames waiting, so a button press doesn't have to wait
+// for slider updates or a layout request queued before it. The device parses
+// the received bytes line by line, so a frame once started is always completed
+// before switching to another lane.
+//
+// The time every frame waits in its lane before its first byte is sent is
+// measured per lane. If a LatencyStats is set, the times every frame has been
+// created, queued, started and completed at are recorded in it as well.
+public class TransmitLanes {
+    public final static int DISCRETE = 0;     // buttons and switches
+    public final static int CONTINUOUS = 1;   // sliders and joysticks
+    public final static int BULK = 2;         // requests and anything else
+    public final static int LANES = 3;
+
+    private final static String[] NAMES = { "discrete", "continuous", "bulk" };
+
+    private final static ControlEvent.Type[] TYPES = ControlEvent.Type.values();
+
+    private static class Lane {
+        final TransmitQueue queue;
+        int[] lengths = new int[16];   // lengths of the frames queued
+        long[] times = new long[16];   // and the times they were queued at
+        int[] kinds = new int[16];     // the ControlEvent.Type they carry
+        long[] created = new long[16]; // and the time that was created at
+        int head = 0;
+        int tail = 0;
+
+        int frames = 0;                // statistics of frames sent
+        long latencySum = 0;
+        long latencyMax = 0;
+
+        Lane(int lowWatermark, int highWatermark) {
+            queue = new TransmitQueue(lowWatermark, highWatermark);
+        }
+
+        void push(int length, long time, int kind, long created) {
+            if (tail - head == lengths.length) {
+                int size = 2 * lengths.length;
+                int[] l = new int[size];
+                long[] t = new long[size];
+                int[] k = new int[size];
+                long[] c = new long[size];
+                for (int i = head; i != tail; i++) {
+                    l[i & (size - 1)] = lengths[i & (lengths.length - 1)];
+                    t[i & (size - 1)] = times[i & (lengths.length - 1)];
+                    k[i & (size - 1)] = kinds[i & (lengths.length - 1)];
+                    c[i & (size - 1)] = this.created[i & (lengths.length - 1)];
+                }
+                lengths = l;
+                times = t;
+                kinds = k;
+                this.created = c;
+            }
+            int i = tail++ & (lengths.length - 1);
+            lengths[i] = length;
+            times[i] = time;
+            kinds[i] = kind;
+            this.created[i] = created;
+        }
+
+        // take out the next frame into the current one of the lanes and
+        // return its length
+        int pop(TransmitLanes lanes, long now) {
+            int i = head++ & (lengths.length - 1);
+            long latency = now - times[i];
+            frames++;
+            latencySum += latency;
+            if (latency > latencyMax) latencyMax = latency;
+
+            lanes.mKind = kinds[i];
+            lanes.mCreated = created[i];
+            lanes.mQueued = times[i];
+            lanes.mFirstWritten = now;
+            return lengths[i];
+        }
+
+        boolean hasFrames() {
+            return head != tail;
+        }
+
+        void clear() {
+            queue.clear();
+            head = tail = 0;
+        }
+    }
+
+    private final Lane[] mLanes = new Lane[LANES];
+    private int mLane = 0;        // lane of the frame being sent
+    private int mRemaining = 0;   // bytes of that frame not sent yet
+
+    // the frame being sent
+    private int mKind;
+    private long mCreated;
+    private long mQueued;
+    private long mFirstWritten;
+
+    // the frames completed by the chunk being written
+    private LatencyStats mStats = null;
+    private int[] mWrittenKinds = new int[8];
+    private long[] mWrittenTimes = new long[3 * 8];   // created, queued and first written
+    private int mWritten = 0;
+
+    public TransmitLanes(int lowWatermark, int highWatermark) {
+        for (int i = 0; i < LANES; i++)
+            mLanes[i] = new Lane(lowWatermark, highWatermark);
+    }
+
+    public void setStats(LatencyStats stats) {
+        mStats = stats;
+    }
+
+    public void setListener(TransmitQueue.Listener listener) {
+        for (Lane lane : mLanes)
+            lane.queue.setListener(listener);
+    }
+
+    // the lane an event is to be sent in
+    public static int laneOf(ControlEvent event) {
+        switch (event.type()) {
+            case BUTTON:
+            case SWITCH:   return DISCRETE;
+            case SLIDER:
+            case JOYSTICK: return CONTINUOUS;
+            default:       return BULK;
+        }
+    }
+
+    // queue a complete frame carrying a message created at the given time.
+    // Returns false if the lane is full and the frame has been dropped
+    public boolean write(int lane, ControlEvent.Type kind, long created, byte[] data, int offset, int length) {
+        if (length == 0)
+            return true;
+
+        if (!mLanes[lane].queue.write(data, offset, length))
+            return false;
+        mLanes[lane].push(length, System.nanoTime(), kind.ordinal(), created);
+        return true;
+    }
+
+    public boolean write(int lane, byte[] data, int offset, int length) {
+        return write(lane, ControlEvent.Type.TEXT, System.nanoTime(), data, offset, length);
+    }
+
+    public boolean write(int lane, byte[] data) {
+        return write(lane, data, 0, data.length);
+    }
+
+    // the most important lane with frames waiting or -1 if there's none
+    private int nextLane() {
+        for (int i = 0; i < LANES; i++)
+            if (mLanes[i].hasFrames())
+                return i;
+        return -1;
+    }
+
+    // take out the next chunk of at most max bytes. A chunk consists of bytes of
+    // a single lane only. It may contain several frames as long as no more
+    // important frame is waiting. Returns null if all lanes are empty
+    public byte[] poll(int max) {
+        mWritten = 0;
+        if (mRemaining == 0) {
+            mLane = nextLane();
+            if (mLane < 0) {
+                mLane = 0;
+                return null;
+            }
+        }
+
+        Lane lane = mLanes[mLane];
+        long now = System.nanoTime();
+
+        // finish the frame started with the previous chunk
+        int length = Math.min(mRemaining, max);
+        if (length > 0) {
+            mRemaining -= length;
+            if (mRemaining == 0) completed();
+        }
+
+        // and append further frames of the same lane
+        while ((mRemaining == 0) && (length < max) && lane.hasFrames() && (nextLane() == mLane)) {
+            int frame = lane.pop(this, now);
+            int part = Math.min(frame, max - length);
+            length += part;
+            mRemaining = frame - part;
+            if (mRemaining == 0) completed();
+        }
+
+        return lane.queue.poll(length);
+    }
+
+    // the current frame is completed by the chunk being taken out
+    private void completed() {
+        if (mWritten == mWrittenKinds.length) {
+            mWrittenKinds = Arrays.copyOf(mWrittenKinds, 2 * mWritten);
+            mWrittenTimes = Arrays.copyOf(mWrittenTimes, 6 * mWritten);
+        }
+        mWrittenKinds[mWritten] = mKind;
+        mWrittenTimes[3 * mWritten] = mCreated;
+        mWrittenTimes[3 * mWritten + 1] = mQueued;
+        mWrittenTimes[3 * mWritten + 2] = mFirstWritten;
+        mWritten++;
+    }
+
+    // the write of the last chunk taken out has been confirmed
+    public void onWritten() {
+        if (mStats != null) {
+            long now = System.nanoTime();
+            for (int i = 0; i < mWritten; i++)
+                mStats.record(TYPES[mWrittenKinds[i]], mWrittenTimes[3 * i],
+                        mWrittenTimes[3 * i + 1], mWrittenTimes[3 * i + 2], now);
+        }
+        mWritten = 0;
+    }
+
+    public boolean isEmpty() {
+        return (mRemaining == 0) && (nextLane() < 0);
+    }
+
+    // the lane the next chunk will be taken from or -1 if all are empty
+    public int peekLane() {
+        return (mRemaining > 0) ? mLane : nextLane();
+    }
+
+    // true while any lane is above its high watermark and hasn't drained below
+    // its low watermark since. Slider and joystick updates should be held back
+    // then
+    public boolean isCongested() {
+        for (Lane lane : mLanes)
+            if (lane.queue.isCongested())
+                return true;
+        return false;
+    }
+
+    // number of bytes waiting in a lane
+    public int size(int lane) {
+        return mLanes[lane].queue.size();
+    }
+
+    public int frames(int lane) {
+        return mLanes[lane].frames;
+    }
+
+    // average and maximum time frames of a lane have been waiting in microseconds
+    public long averageLatency(int lane) {
+        Lane l = mLanes[lane];
+        return (l.frames > 0) ? l.latencySum / l.frames / 1000 : 0;
+    }
+
+    public long maxLatency(int lane) {
+        return mLanes[lane].latencyMax / 1000;
+    }
+
+    public void clear() {
+        for (Lane lane : mLanes)
+            lane.clear();
+        mLane = 0;
+        mRemaining = 0;
+        mWritten = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LANES; i++) {
+            if (i > 0) sb.append("; ");
+            sb.append(NAMES[i]).append(": ").append(mLanes[i].queue)
+                    .append(", ").append(frames(i)).append(" frames waited avg ")
+                    .append(averageLatency(i)).append("us, max ")
+                    .append(maxLatency(i)).append("us");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,181 @@
+package org.harbaum.ftduinoblue;
+
+// Buffers the bytes to be sent to the device while a write is in progress.
+//
+// Messages are appended to a ring buffer and taken out in chunks of at most the
+// size of a single write. Neither appending nor taking out a chunk copies the
+// rest of the backlog. The chunk arrays are reused per length, so a chunk
+// returned by poll() is only valid until the next chunk of the same length is
+// taken out.
+//
+// The number of bytes waiting is watched against a high and a low watermark,
+// so producers of frequent messages can hold back while the link can't keep up.
+// The buffer grows as needed, but never beyond a maximum capacity. Messages not
+// fitting anymore are dropped.
+public class TransmitQueue {
+    private final static int DEFAULT_CAPACITY = 1024;
+    private final static int DEFAULT_MAX_CAPACITY = 16384;
+
+    public interface Listener {
+        // more than the high watermark bytes are waiting
+        void onCongested(int depth);
+        // the backlog has been drained below the low watermark again
+        void onDrained(int depth);
+    }
+
+    private byte[] mBuffer;
+    private int mMask;
+    private int mHead = 0;     // positions since the last clear() as in the LineAssembler
+    private int mTail = 0;
+
+    private final int mMaxCapacity;
+    private final int mLowWatermark;
+    private final int mHighWatermark;
+    private boolean mCongested = false;
+    private Listener mListener = null;
+
+    private byte[][] mChunks = new byte[0][];
+    private int mMaxDepth = 0;
+    private int mCongestions = 0;
+    private int mDropped = 0;
+
+    public TransmitQueue(int lowWatermark, int highWatermark) {
+        this(DEFAULT_CAPACITY, lowWatermark, highWatermark);
+    }
+
+    public TransmitQueue(int capacity, int lowWatermark, int highWatermark) {
+        this(capacity, Math.max(capacity, DEFAULT_MAX_CAPACITY), lowWatermark, highWatermark);
+    }
+
+    public TransmitQueue(int capacity, int maxCapacity, int lowWatermark, int highWatermark) {
+        mBuffer = new byte[roundUp(capacity)];
+        mMask = mBuffer.length - 1;
+        mMaxCapacity = roundUp(maxCapacity);
+        mLowWatermark = lowWatermark;
+        mHighWatermark = highWatermark;
+    }
+
+    private static int roundUp(int capacity) {
+        int size = 16;
+        while (size < capacity) size <<= 1;
+        return size;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void clear() {
+        mHead = mTail = 0;
+        mCongested = false;
+    }
+
+    public boolean write(byte[] data) {
+        return write(data, 0, data.length);
+    }
+
+    // append a message. Returns false if it has been dropped because the
+    // queue is full
+    public boolean write(byte[] data, int offset, int length) {
+        if (!ensureCapacity(mTail - mHead + length)) {
+            mDropped++;
+            return false;
+        }
+
+        int pos = mTail & mMask;
+        int first = Math.min(length, mBuffer.length - pos);
+        System.arraycopy(data, offset, mBuffer, pos, first);
+        System.arraycopy(data, offset + first, mBuffer, 0, length - first);
+        mTail += length;
+
+        int depth = size();
+        if (depth > mMaxDepth) mMaxDepth = depth;
+        if (!mCongested && (depth > mHighWatermark)) {
+            mCongested = true;
+            mCongestions++;
+            if (mListener != null) mListener.onCongested(depth);
+        }
+        return true;
+    }
+
+    private boolean ensureCapacity(int needed) {
+        if (needed <= mBuffer.length)
+            return true;
+        if (needed > mMaxCapacity)
+            return false;
+
+        byte[] buffer = new byte[roundUp(needed)];
+        for (int i = mHead; i != mTail; i++)
+            buffer[i & (buffer.length - 1)] = mBuffer[i & mMask];
+
+        mBuffer = buffer;
+        mMask = buffer.length - 1;
+        return true;
+    }
+
+    // take out the next chunk of at most max bytes. Returns null if the queue
+    // is empty
+    public byte[] poll(int max) {
+        int length = Math.min(size(), max);
+        if (length == 0)
+            return null;
+
+        if (length >= mChunks.length) {
+            byte[][] chunks = new byte[length + 1][];
+            System.arraycopy(mChunks, 0, chunks, 0, mChunks.length);
+            mChunks = chunks;
+        }
+        if (mChunks[length] == null)
+            mChunks[length] = new byte[length];
+        byte[] chunk = mChunks[length];
+
+        int pos = mHead & mMask;
+        int first = Math.min(length, mBuffer.length - pos);
+        System.arraycopy(mBuffer, pos, chunk, 0, first);
+        System.arraycopy(mBuffer, 0, chunk, first, length - first);
+        mHead += length;
+
+        int depth = size();
+        if (mCongested && (depth < mLowWatermark)) {
+            mCongested = false;
+            if (mListener != null) mListener.onDrained(depth);
+        }
+        return chunk;
+    }
+
+    // number of bytes waiting to be sent
+    public int size() {
+        return mTail - mHead;
+    }
+
+    public boolean isEmpty() {
+        return mTail == mHead;
+    }
+
+    public boolean isCongested() {
+        return mCongested;
+    }
+
+    public int maxDepth() {
+        return mMaxDepth;
+    }
+
+    public int congestions() {
+        return mCongestions;
+    }
+
+    // number of messages dropped for not fitting into the queue anymore
+    public int dropped() {
+        return mDropped;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    @Override
+    public String toString() {
+        return "depth " + size() + " (max " + mMaxDepth + "), congested " + mCongestions +
+                " times, dropped " + mDropped;
+    }
+}
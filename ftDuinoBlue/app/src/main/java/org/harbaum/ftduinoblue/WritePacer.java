@@ -0,0 +1,112 @@
+package org.harbaum.ftduinoblue;
+
+// Limits the rate at which chunks are written to the device.
+//
+// Android confirms writes without response as soon as the local stack has
+// accepted them. The HM-10 however forwards the data over a slow serial link
+// and cheap modules silently drop bytes if they are flooded. The pacer thus
+// keeps a target rate in bytes per second and spaces writes accordingly. The
+// rate starts at what the link can carry with the negotiated MTU and
+// connection interval. Like TCP's slow start it's doubled with every write
+// completed in time until the first sign of overload is seen: a write taking
+// much longer than usual, a failed write, a broken line received or a request
+// timing out. The rate is halved then and from there on only raised
+// additively. After a decrease further signs are ignored for a while, since a
+// single overload usually causes several of them.
+//
+// All times are in milliseconds.
+public class WritePacer {
+    public final static int INITIAL_RATE = 960;      // bytes/s, the HM-10 default of 9600 baud
+    public final static int MIN_RATE = 120;
+    public final static int MAX_RATE = 16384;
+    private final static int INCREASE = 16;          // bytes/s added per write completed after slow start
+    private final static int LATENCY_FACTOR = 4;     // writes this much slower than usual overload
+    private final static long MIN_LATENCY = 20;      // but writes faster than this never do
+    private final static long RECOVERY_TIME = 500;   // no further decrease for this long
+
+    private int mRate = INITIAL_RATE;
+    private boolean mSlowStart = true;  // no overload seen yet
+    private long mNextWrite = 0;       // earliest time of the next write in microseconds
+    private long mWriteTime = -1;      // time the current write was started at
+    private long mLatency = -1;        // smoothed write completion time, -1 if unknown
+    private long mRecoveryEnd = 0;
+
+    private int mWrites = 0;
+    private int mDecreases = 0;
+    private int mMinRate = INITIAL_RATE;
+
+    // forget everything learned about the previous connection
+    public void reset() {
+        mRate = mMinRate = INITIAL_RATE;
+        mSlowStart = true;
+        mNextWrite = 0;
+        mWriteTime = mLatency = -1;
+        mRecoveryEnd = 0;
+        mWrites = mDecreases = 0;
+    }
+
+    // start with the rate of one write of the given size per connection interval,
+    // but never below the initial rate
+    public void seed(int bytesPerWrite, long interval) {
+        long rate = 1000L * bytesPerWrite / Math.max(1, interval);
+        mRate = (int) Math.min(MAX_RATE, Math.max(INITIAL_RATE, rate));
+    }
+
+    // time to wait before the next write may be started
+    public long delay(long now) {
+        long delay = mNextWrite - 1000 * now;
+        return (delay > 0) ? (delay + 999) / 1000 : 0;
+    }
+
+    // a write of the given number of bytes has been started
+    public void onWrite(int bytes, long now) {
+        mNextWrite = Math.max(mNextWrite, 1000 * now) + 1000000L * bytes / mRate;
+        mWriteTime = now;
+        mWrites++;
+    }
+
+    // the write has been completed
+    public void onWriteComplete(long now) {
+        if (mWriteTime < 0)
+            return;
+
+        long latency = now - mWriteTime;
+        mWriteTime = -1;
+
+        if ((mLatency >= 0) && (latency > MIN_LATENCY) && (latency > LATENCY_FACTOR * mLatency)) {
+            onOverload(now);
+            return;
+        }
+
+        // smooth the completion time by 1/8 like TCP does with its round trip time
+        mLatency = (mLatency < 0) ? latency : mLatency + (latency - mLatency) / 8;
+        mRate = Math.min(MAX_RATE, mSlowStart ? 2 * mRate : mRate + INCREASE);
+    }
+
+    // a sign of overload has been seen
+    public void onOverload(long now) {
+        if (now < mRecoveryEnd)
+            return;
+
+        mRate = Math.max(MIN_RATE, mRate / 2);
+        if (mRate < mMinRate) mMinRate = mRate;
+        mSlowStart = false;
+        mRecoveryEnd = now + RECOVERY_TIME;
+        mDecreases++;
+    }
+
+    // current target rate in bytes per second
+    public int rate() {
+        return mRate;
+    }
+
+    public int decreases() {
+        return mDecreases;
+    }
+
+    @Override
+    public String toString() {
+        return "rate " + mRate + " bytes/s (min " + mMinRate + "), " + mWrites +
+                " writes, " + mDecreases + " decreases, write time " + mLatency + "ms";
+    }
+}
@@ -0,0 +1,45 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class BinaryFrameTest {
+    private static void assertFrame(int[] expected, ControlEvent event) {
+        byte[] frame = new byte[BinaryFrame.MAX_LENGTH];
+        int length = BinaryFrame.encode(event, frame);
+        assertEquals(expected.length, length);
+        for (int i = 0; i < length; i++)
+            assertEquals("byte " + i, expected[i], frame[i] & 0xff);
+    }
+
+    @Test
+    public void usesStandardCrc8() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xf4, BinaryFrame.crc8(check, 0, check.length));
+    }
+
+    @Test
+    public void encodesControlEvents() {
+        assertFrame(new int[] { 0x84, 12, 0xff, 0x9c, 0x00, 0x64, 0x67 }, ControlEvent.joystick(12, -100, 100));
+        assertFrame(new int[] { 0x83, 0xac, 0x02, 0x01, 0x00, 0xe5 }, ControlEvent.slider(300, 256));
+        assertFrame(new int[] { 0x81, 3, 1, 0x58 }, ControlEvent.button(3, true));
+    }
+
+    @Test
+    public void fitsIntoSingleWrite() {
+        // the text frame of the same joystick event needs two writes
+        assertTrue(BinaryFrame.MAX_LENGTH <= 20);
+        assertTrue(ControlEvent.joystick(12, -100, 100).toText().length() + 4 > 20);
+    }
+
+    @Test
+    public void leavesOtherMessagesToText() {
+        assertFalse(BinaryFrame.canEncode(ControlEvent.text("STATE")));
+        assertFalse(BinaryFrame.canEncode(ControlEvent.slider(1, 40000)));
+        assertTrue(BinaryFrame.canEncode(ControlEvent.switchState(1, false)));
+        assertEquals("SWITCH 1 OFF", ControlEvent.switchState(1, false).toText());
+    }
+}
@@ -0,0 +1,80 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CommandRegistryTest {
+    private CommandRegistry mRegistry;
+    private DeviceCommand mLast;
+
+    @Before
+    public void setUp() {
+        CommandRegistry.Handler handler = new CommandRegistry.Handler() {
+            @Override
+            public void handle(DeviceCommand command) {
+                mLast = command;
+            }
+        };
+
+        mRegistry = new CommandRegistry();
+        mRegistry.register("VERSION", DeviceCommand.Type.VERSION, CommandRegistry.TEXT, handler);
+        mRegistry.register("TEXT", DeviceCommand.Type.TEXT, CommandRegistry.ID_TEXT, handler);
+        mRegistry.register("COLOR", DeviceCommand.Type.COLOR, CommandRegistry.ID_COLOR, handler);
+        mRegistry.register("SWITCH", DeviceCommand.Type.SWITCH, CommandRegistry.ID_BOOLEAN, handler);
+        mRegistry.register("SLIDER", DeviceCommand.Type.SLIDER, CommandRegistry.ID_INT, handler);
+        mRegistry.setDefaultHandler(handler);
+    }
+
+    @Test
+    public void parsesTypedArguments() {
+        assertTrue(mRegistry.dispatch("VERSION  1.0.0"));
+        assertEquals(DeviceCommand.Type.VERSION, mLast.type());
+        assertEquals("1.0.0", mLast.text());
+
+        assertTrue(mRegistry.dispatch("text 12 Hello  World"));
+        assertEquals(DeviceCommand.Type.TEXT, mLast.type());
+        assertEquals(12, mLast.id());
+        assertEquals("Hello  World", mLast.text());
+
+        assertTrue(mRegistry.dispatch("SWITCH 3 on"));
+        assertTrue(mLast.on());
+        assertTrue(mRegistry.dispatch("SWITCH 3 OFF"));
+        assertFalse(mLast.on());
+
+        assertTrue(mRegistry.dispatch("SLIDER 5 -42"));
+        assertEquals(5, mLast.id());
+        assertEquals(-42, mLast.value());
+    }
+
+    @Test
+    public void parsesColors() {
+        assertTrue(mRegistry.dispatch("COLOR 1 #ff0000"));
+        assertEquals(0xffff0000, mLast.color());
+        assertTrue(mRegistry.dispatch("COLOR 1 #80112233"));
+        assertEquals(0x80112233, mLast.color());
+        assertTrue(mRegistry.dispatch("COLOR 1 Teal"));
+        assertEquals(0xff008080, mLast.color());
+    }
+
+    @Test
+    public void rejectsInvalidArguments() {
+        mLast = null;
+        assertFalse(mRegistry.dispatch("SLIDER 5"));
+        assertFalse(mRegistry.dispatch("SLIDER x 5"));
+        assertFalse(mRegistry.dispatch("TEXT 5"));
+        assertFalse(mRegistry.dispatch("COLOR 1 #12345"));
+        assertFalse(mRegistry.dispatch("COLOR 1 nocolor"));
+        assertNull(mLast);
+        assertEquals(5, mRegistry.malformed());
+    }
+
+    @Test
+    public void passesUnknownCommandsToDefaultHandler() {
+        assertTrue(mRegistry.dispatch("ERROR:unknown command FOO"));
+        assertEquals(DeviceCommand.Type.UNKNOWN, mLast.type());
+        assertEquals("ERROR:unknown", mLast.name());
+        assertEquals("command FOO", mLast.text());
+    }
+}
@@ -0,0 +1,40 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPriorityTest {
+    @Test
+    public void switchesToHighOnActivityOnly() {
+        ConnectionPriority priority = new ConnectionPriority(5000, ConnectionPriority.BALANCED);
+        assertEquals(ConnectionPriority.HIGH, priority.onActivity(1000));
+        assertEquals(ConnectionPriority.NONE, priority.onActivity(1200));
+        assertEquals(ConnectionPriority.NONE, priority.onActivity(3000));
+        assertEquals(1, priority.transitions());
+    }
+
+    @Test
+    public void dropsBackAfterIdleTimeout() {
+        ConnectionPriority priority = new ConnectionPriority(5000, ConnectionPriority.LOW_POWER);
+        priority.onActivity(1000);
+        priority.onActivity(4000);
+
+        // the first check is due 5s after the switch, but the link wasn't idle
+        assertEquals(ConnectionPriority.NONE, priority.onIdleCheck(6000));
+        assertEquals(3000, priority.idleIn(6000));
+
+        assertEquals(ConnectionPriority.LOW_POWER, priority.onIdleCheck(9000));
+        assertEquals(ConnectionPriority.LOW_POWER, priority.priority());
+        assertEquals(8000, priority.highTime());
+        assertEquals(0, priority.idleIn(9000));
+        assertEquals(ConnectionPriority.NONE, priority.onIdleCheck(20000));
+
+        assertEquals(ConnectionPriority.HIGH, priority.onActivity(30000));
+        assertEquals(3, priority.transitions());
+
+        priority.reset();
+        assertEquals(ConnectionPriority.BALANCED, priority.priority());
+        assertEquals(0, priority.transitions());
+    }
+}
@@ -0,0 +1,91 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import static org.harbaum.ftduinoblue.ConnectionStateMachine.State.*;
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+    @Test
+    public void recordsThePhasesOfASetup() {
+        ConnectionStateMachine machine = new ConnectionStateMachine(0);
+        assertTrue(machine.moveTo(SCANNING, 1000));
+        assertTrue(machine.moveTo(CONNECTING, 5000));
+        assertTrue(machine.moveTo(DISCOVERING, 5300));
+        assertTrue(machine.isConnected());
+        assertTrue(machine.moveTo(SUBSCRIBING, 5500));
+        assertTrue(machine.moveTo(HANDSHAKE, 5600));
+        assertTrue(machine.moveTo(LAYOUT, 5700));
+        assertTrue(machine.moveTo(READY, 7700));
+
+        assertEquals(300, machine.last(CONNECTING));
+        assertEquals(2000, machine.last(LAYOUT));
+        assertEquals(6700, machine.setupTime());
+        assertEquals(LAYOUT, machine.slowest());
+        assertEquals("scanning 4000ms, connecting 300ms, discovering 200ms, subscribing 100ms, " +
+                "handshake 100ms, layout 2000ms", machine.phases());
+
+        // the next setup starts from scratch, the totals are kept
+        assertTrue(machine.moveTo(DISCONNECTING, 9000));
+        assertTrue(machine.moveTo(IDLE, 9100));
+        assertTrue(machine.moveTo(CONNECTING, 10000));
+        assertEquals(-1, machine.last(LAYOUT));
+        assertEquals(1, machine.count(LAYOUT));
+        assertEquals(1, machine.count(CONNECTING));
+    }
+
+    @Test
+    public void rejectsTransitionsOutOfOrder() {
+        ConnectionStateMachine machine = new ConnectionStateMachine(0);
+        assertFalse(machine.moveTo(DISCOVERING, 10));
+        assertTrue(machine.moveTo(CONNECTING, 10));
+        assertFalse(machine.moveTo(HANDSHAKE, 20));
+        assertFalse(machine.moveTo(CONNECTING, 20));
+        assertEquals(CONNECTING, machine.state());
+        assertEquals(3, machine.rejected());
+
+        // devices without a layout are ready after the handshake
+        assertTrue(ConnectionStateMachine.isAllowed(HANDSHAKE, READY));
+        assertTrue(ConnectionStateMachine.isAllowed(SUBSCRIBING, DISCONNECTING));
+        assertFalse(ConnectionStateMachine.isAllowed(IDLE, IDLE));
+    }
+
+    @Test
+    public void resumesALostConnection() {
+        ConnectionStateMachine machine = new ConnectionStateMachine(0);
+        machine.moveTo(CONNECTING, 0);
+        machine.moveTo(DISCOVERING, 100);
+        assertTrue(machine.moveTo(RECONNECTING, 150));
+        assertFalse(machine.isConnected());
+
+        // a link still being set up can't be lost again
+        assertFalse(machine.moveTo(RECONNECTING, 200));
+        assertFalse(machine.moveTo(CONNECTING, 200));
+
+        // the reconnect is measured from losing the link
+        assertTrue(machine.moveTo(DISCOVERING, 450));
+        assertTrue(machine.moveTo(SUBSCRIBING, 500));
+        assertTrue(machine.moveTo(HANDSHAKE, 520));
+        assertTrue(machine.moveTo(READY, 600));
+        assertEquals(450, machine.setupTime());
+        assertEquals(RECONNECTING, machine.slowest());
+        assertEquals("reconnecting 300ms, discovering 50ms, subscribing 20ms, handshake 80ms",
+                machine.phases());
+        assertEquals(-1, machine.last(CONNECTING));
+    }
+
+    @Test
+    public void watchesTheDeadlineOfEveryState() {
+        ConnectionStateMachine machine = new ConnectionStateMachine(0);
+        assertEquals(-1, machine.timeLeft(100));
+
+        machine.setTimeout(CONNECTING, 1000);
+        machine.moveTo(CONNECTING, 100);
+        assertEquals(600, machine.timeLeft(500));
+        assertFalse(machine.isExpired(1099));
+        assertTrue(machine.isExpired(1100));
+
+        machine.moveTo(DISCOVERING, 1100);
+        assertEquals(machine.timeout(DISCOVERING), machine.timeLeft(1100));
+    }
+}
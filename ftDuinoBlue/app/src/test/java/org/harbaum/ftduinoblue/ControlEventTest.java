@@ -0,0 +1,24 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ControlEventTest {
+    @Test
+    public void addressesFurtherDevices() {
+        ControlEvent event = ControlEvent.slider(3, 42);
+        assertNull(event.device());
+        assertSame(event, event.to(null));
+
+        ControlEvent further = event.to("00:11:22:33:44:55");
+        assertEquals("00:11:22:33:44:55", further.device());
+        assertEquals("SLIDER 3 42", further.toText());
+        assertEquals(event.created(), further.created());
+        assertTrue(event.sameValue(further));
+        assertSame(further, further.to("00:11:22:33:44:55"));
+
+        // back to the device the layout came from
+        assertNull(further.to(null).device());
+    }
+}
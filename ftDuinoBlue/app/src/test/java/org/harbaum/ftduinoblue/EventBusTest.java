@@ -0,0 +1,73 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventBusTest {
+    private static class Recorder<T> implements EventBus.Subscriber<T> {
+        final List<T> events = new ArrayList<>();
+
+        @Override
+        public void onEvent(T event) {
+            events.add(event);
+        }
+    }
+
+    @Test
+    public void deliversByEventClass() {
+        EventBus bus = new EventBus();
+        Recorder<EventBus.DeviceFound> devices = new Recorder<>();
+        Recorder<EventBus.Disconnected> disconnects = new Recorder<>();
+        bus.register(EventBus.DeviceFound.class, devices, null);
+        bus.register(EventBus.Disconnected.class, disconnects, null);
+
+        EventBus.DeviceFound found = new EventBus.DeviceFound("ftDuino", "00:11");
+        assertTrue(bus.post(found));
+        assertEquals(1, devices.events.size());
+        assertSame(found, devices.events.get(0));
+        assertTrue(disconnects.events.isEmpty());
+
+        assertFalse(bus.post(new EventBus.SendMessage(ControlEvent.text("STATE"))));
+    }
+
+    @Test
+    public void stopsDeliveryAfterUnregister() {
+        EventBus bus = new EventBus();
+        Recorder<EventBus.Disconnected> first = new Recorder<>();
+        Recorder<EventBus.Disconnected> second = new Recorder<>();
+        bus.register(EventBus.Disconnected.class, first, null);
+        bus.register(EventBus.Disconnected.class, second, null);
+
+        bus.post(new EventBus.Disconnected());
+        bus.unregister(first);
+        bus.post(new EventBus.Disconnected());
+
+        assertEquals(1, first.events.size());
+        assertEquals(2, second.events.size());
+
+        bus.unregister(second);
+        assertFalse(bus.post(new EventBus.Disconnected()));
+    }
+
+    @Test
+    public void dropsEventsOfAPostInProgress() {
+        final EventBus bus = new EventBus();
+        final Recorder<EventBus.Disconnected> second = new Recorder<>();
+        // the first subscriber unregisters the second one while the same
+        // event is being delivered
+        bus.register(EventBus.Disconnected.class, new EventBus.Subscriber<EventBus.Disconnected>() {
+            @Override
+            public void onEvent(EventBus.Disconnected event) {
+                bus.unregister(second);
+            }
+        }, null);
+        bus.register(EventBus.Disconnected.class, second, null);
+
+        bus.post(new EventBus.Disconnected());
+        assertTrue(second.events.isEmpty());
+    }
+}
@@ -0,0 +1,53 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+    private static LineAssembler line(String s) {
+        LineAssembler assembler = new LineAssembler();
+        assembler.append((s + "\n").getBytes(StandardCharsets.UTF_8));
+        assertTrue(assembler.nextLine());
+        return assembler;
+    }
+
+    @Test
+    public void decodesValidFrame() {
+        FrameDecoder decoder = new FrameDecoder();
+        assertTrue(decoder.decode(line("VERSION 1.0.0:33")));
+        assertEquals("VERSION 1.0.0", decoder.toString());
+        assertTrue(decoder.decode(line(" TEXT 3 abc :1e")));
+        assertEquals("TEXT 3 abc", decoder.toString());
+        assertEquals(2, decoder.frames());
+    }
+
+    @Test
+    public void decodesMultiByteCharacters() {
+        FrameDecoder decoder = new FrameDecoder();
+        // "\u00c4\u00d6" is c3 84 c3 96 in UTF-8
+        assertTrue(decoder.decode(line("\u00c4\u00d6:A0")));
+        assertEquals("\u00c4\u00d6", decoder.toString());
+    }
+
+    @Test
+    public void countsChecksumFailures() {
+        FrameDecoder decoder = new FrameDecoder();
+        assertFalse(decoder.decode(line("VERSION 1.0.0:34")));
+        assertEquals(1, decoder.checksumFailures());
+        assertEquals(0, decoder.malformedFrames());
+        assertEquals(0, decoder.length());
+    }
+
+    @Test
+    public void countsMalformedFrames() {
+        FrameDecoder decoder = new FrameDecoder();
+        assertFalse(decoder.decode(line("VERSION 1.0.0")));
+        assertFalse(decoder.decode(line("VERSION:XY")));
+        assertFalse(decoder.decode(line(":00")));
+        assertEquals(3, decoder.malformedFrames());
+        assertEquals(0, decoder.checksumFailures());
+    }
+}
@@ -0,0 +1,51 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class FrameEncoderTest {
+    @Test
+    public void appendsChecksumAndNewline() {
+        byte[] frame = FrameEncoder.appendChecksumAndNl("VERSION 1.0.0");
+        assertEquals("VERSION 1.0.0:33\n", new String(frame, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void isAcceptedByDecoder() {
+        LineAssembler assembler = new LineAssembler();
+        assembler.append(FrameEncoder.appendChecksumAndNl("TEXT 3 \u00c4\u00d6"));
+        assertTrue(assembler.nextLine());
+
+        FrameDecoder decoder = new FrameDecoder();
+        assertTrue(decoder.decode(assembler));
+        assertEquals("TEXT 3 \u00c4\u00d6", decoder.toString());
+    }
+
+    private static String encode(FrameEncoder encoder, ControlEvent event) {
+        int length = encoder.encode(event);
+        return new String(encoder.buffer(), 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void encodesControlEventsLikeTheirText() {
+        FrameEncoder encoder = new FrameEncoder(4);
+        ControlEvent[] events = {
+                ControlEvent.button(3, true), ControlEvent.button(3, false),
+                ControlEvent.switchState(0, true), ControlEvent.switchState(17, false),
+                ControlEvent.slider(2, 0), ControlEvent.slider(12, -255),
+                ControlEvent.joystick(1, 100, -100),
+                ControlEvent.joystick(2, Integer.MIN_VALUE, Integer.MAX_VALUE),
+                ControlEvent.text("STATE")
+        };
+
+        for (ControlEvent event : events) {
+            String expected = new String(FrameEncoder.appendChecksumAndNl(event.toText()),
+                    StandardCharsets.UTF_8);
+            assertEquals(expected, encode(encoder, event));
+        }
+        assertEquals("JOYSTICK 1 100 -100:50\n", encode(encoder, events[6]));
+    }
+}
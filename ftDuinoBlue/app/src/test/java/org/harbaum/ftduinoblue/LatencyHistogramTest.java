@@ -0,0 +1,55 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void countsSmallValuesExactly() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++)
+            histogram.record(i);
+
+        assertEquals(50, histogram.count());
+        assertEquals(1, histogram.min());
+        assertEquals(50, histogram.max());
+        assertEquals(25, histogram.mean());
+        assertEquals(25, histogram.percentile(50));
+        assertEquals(45, histogram.percentile(90));
+        assertEquals(50, histogram.percentile(100));
+    }
+
+    @Test
+    public void keepsLargeValuesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = { 100, 1000, 12345, 250000, 3000000, 40000000000L };
+        for (long value : values) {
+            histogram.reset();
+            histogram.record(value);
+            long recorded = histogram.percentile(50);
+            assertTrue(value + " vs " + recorded, recorded >= value);
+            assertTrue(value + " vs " + recorded, recorded <= value + value / 32);
+        }
+
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(99));
+    }
+
+    @Test
+    public void reportsPerCommand() {
+        LatencyStats stats = new LatencyStats();
+        stats.record(ControlEvent.Type.JOYSTICK, 0, 1000000, 2000000, 5000000);
+        stats.record(ControlEvent.Type.JOYSTICK, 0, 1000000, 2000000, 7000000);
+
+        assertEquals(2, stats.count(ControlEvent.Type.JOYSTICK));
+        assertEquals(0, stats.count(ControlEvent.Type.BUTTON));
+        assertEquals(1000, stats.percentile(ControlEvent.Type.JOYSTICK, LatencyStats.QUEUED, 50));
+        assertEquals(7000, stats.percentile(ControlEvent.Type.JOYSTICK, LatencyStats.WRITTEN, 99));
+
+        String[] lines = stats.csv().split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("JOYSTICK,written,2,5000,6000,5119,7000,7000,7000,7000", lines[3]);
+    }
+}
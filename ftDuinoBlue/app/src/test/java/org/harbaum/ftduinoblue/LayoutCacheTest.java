@@ -0,0 +1,109 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class LayoutCacheTest {
+    private final static String ADDRESS = "00:11:22:33:44:55";
+    private final static String LAYOUT = "<layout name='Test'><label id='1'>\u00c4pfel</label></layout>";
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("layouts", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles())
+            file.delete();
+        mDir.delete();
+    }
+
+    @Test
+    public void hashesTheContent() {
+        // reference values of 32 bit FNV-1a
+        assertEquals("811c9dc5", LayoutCache.hash(""));
+        assertEquals("e40c292c", LayoutCache.hash("a"));
+        assertFalse(LayoutCache.hash(LAYOUT).equals(LayoutCache.hash(LAYOUT + " ")));
+    }
+
+    @Test
+    public void findsLayoutsByDeviceAndHash() throws Exception {
+        LayoutCache cache = new LayoutCache(mDir, 1024);
+        assertFalse(cache.contains(ADDRESS));
+        assertTrue(cache.put(ADDRESS, LAYOUT));
+
+        assertTrue(cache.contains("00:11:22:33:44:55".toLowerCase()));
+        assertFalse(cache.contains("66:77:88:99:AA:BB"));
+        assertEquals(LAYOUT, cache.get(ADDRESS, LayoutCache.hash(LAYOUT)));
+        assertNull(cache.get(ADDRESS, "00000000"));
+        assertNull(cache.get("66:77:88:99:AA:BB", LayoutCache.hash(LAYOUT)));
+
+        // and still has them after a restart
+        LayoutCache restored = new LayoutCache(mDir, 1024);
+        assertEquals(1, restored.count());
+        assertEquals(LAYOUT, restored.get(ADDRESS, LayoutCache.hash(LAYOUT)));
+    }
+
+    @Test
+    public void replacesTheLayoutOfADevice() {
+        LayoutCache cache = new LayoutCache(mDir, 1024);
+        String other = LAYOUT.replace("Test", "Other");
+        cache.put(ADDRESS, LAYOUT);
+        cache.put("66:77:88:99:AA:BB", LAYOUT);
+        assertTrue(cache.put(ADDRESS, other));
+
+        assertEquals(2, cache.count());
+        assertEquals(2, mDir.list().length);
+        assertNull(cache.get(ADDRESS, LayoutCache.hash(LAYOUT)));
+        assertEquals(other, cache.get(ADDRESS, LayoutCache.hash(other)));
+        assertEquals(LAYOUT, cache.get("66:77:88:99:AA:BB", LayoutCache.hash(LAYOUT)));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedLayouts() {
+        LayoutCache cache = new LayoutCache(mDir, 3 * LAYOUT.length());
+        cache.put("00:00:00:00:00:01", LAYOUT);
+        cache.put("00:00:00:00:00:02", LAYOUT);
+        assertNotNull(cache.get("00:00:00:00:00:01", LayoutCache.hash(LAYOUT)));
+        cache.put("00:00:00:00:00:03", LAYOUT);
+
+        assertEquals(2, cache.count());
+        assertTrue(cache.bytes() <= 3 * LAYOUT.length());
+        assertTrue(cache.contains("00:00:00:00:00:01"));
+        assertFalse(cache.contains("00:00:00:00:00:02"));
+        assertEquals(2, mDir.list().length);
+
+        // layouts larger than the whole cache aren't stored at all
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 4; i++) large.append(LAYOUT);
+        assertFalse(cache.put("00:00:00:00:00:04", large.toString()));
+        assertEquals(2, cache.count());
+    }
+
+    @Test
+    public void dropsCorruptedLayouts() throws Exception {
+        LayoutCache cache = new LayoutCache(mDir, 1024);
+        cache.put(ADDRESS, LAYOUT);
+
+        File[] files = mDir.listFiles();
+        assertEquals(1, files.length);
+        try (FileOutputStream out = new FileOutputStream(files[0])) {
+            out.write("<layout".getBytes("UTF-8"));
+        }
+
+        assertNull(cache.get(ADDRESS, LayoutCache.hash(LAYOUT)));
+        assertFalse(cache.contains(ADDRESS));
+        assertEquals(0, mDir.list().length);
+    }
+}
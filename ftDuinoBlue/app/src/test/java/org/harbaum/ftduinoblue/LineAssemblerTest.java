@@ -0,0 +1,130 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class LineAssemblerTest {
+    private static String line(LineAssembler assembler) {
+        byte[] b = new byte[assembler.lineLength()];
+        assembler.copyLine(b, 0, b.length);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void append(LineAssembler assembler, String s) {
+        assembler.append(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void assemblesLineFromChunks() {
+        LineAssembler assembler = new LineAssembler();
+        append(assembler, "VERSI");
+        assertFalse(assembler.nextLine());
+        append(assembler, "ON 1.0");
+        assertFalse(assembler.nextLine());
+        append(assembler, ".0:5E\r\nTEXT");
+        assertTrue(assembler.nextLine());
+        assertEquals("VERSION 1.0.0:5E", line(assembler));
+        assertFalse(assembler.nextLine());
+        assertEquals(4, assembler.pending());
+    }
+
+    @Test
+    public void copiesPartsAcrossTheRingBoundary() {
+        LineAssembler assembler = new LineAssembler(8);
+        append(assembler, "ABCDE\nLAYO");
+        assertTrue(assembler.nextLine());
+        assertFalse(assembler.nextLine());
+        append(assembler, "UT <x/>");
+
+        byte[] b = new byte[4];
+        assembler.copyPending(5, b, 0, 4);
+        assertEquals("T <x", new String(b, StandardCharsets.UTF_8));
+
+        // the indices stay the same once the line is complete
+        append(assembler, ":00\n");
+        assertTrue(assembler.nextLine());
+        assembler.copyLine(7, b, 1, 3);
+        assertEquals("T<x/", new String(b, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void returnsSeveralLinesFromOneChunk() {
+        LineAssembler assembler = new LineAssembler();
+        append(assembler, "A\n\n\r\nB\nC");
+        assertTrue(assembler.nextLine());
+        assertEquals("A", line(assembler));
+        assertTrue(assembler.nextLine());
+        assertEquals("B", line(assembler));
+        assertFalse(assembler.nextLine());
+        assertEquals(1, assembler.pending());
+    }
+
+    @Test
+    public void handlesLinesWrappingAroundTheRing() {
+        LineAssembler assembler = new LineAssembler(16);
+        for (int i = 0; i < 100; i++) {
+            append(assembler, "LINE " + i + "\n");
+            assertTrue(assembler.nextLine());
+            assertEquals("LINE " + i, line(assembler));
+            assertEquals('L', assembler.lineByteAt(0));
+        }
+        assertEquals(16, assembler.capacity());
+    }
+
+    @Test
+    public void growsForLongLines() {
+        LineAssembler assembler = new LineAssembler(16);
+        StringBuilder sb = new StringBuilder("LAYOUT ");
+        append(assembler, "LAYOUT ");
+        for (int i = 0; i < 200; i++) {
+            String chunk = "<label id=\"" + i + "\"/>";
+            sb.append(chunk);
+            append(assembler, chunk);
+            assertFalse(assembler.nextLine());
+        }
+        append(assembler, "\n");
+        assertTrue(assembler.nextLine());
+        assertEquals(sb.toString(), line(assembler));
+    }
+
+    @Test
+    public void dropsOverlongLinesAndResyncs() {
+        LineAssembler assembler = new LineAssembler(16, 32);
+        append(assembler, "TEXT 1 ok\n");
+        assertTrue(assembler.nextLine());
+
+        // noise without any delimiter never grows the buffer
+        for (int i = 0; i < 100; i++) {
+            append(assembler, "0123456789");
+            assertFalse(assembler.nextLine());
+            assertTrue(assembler.pending() <= 32);
+        }
+        assertTrue(assembler.isDiscarding());
+        assertEquals(64, assembler.capacity());
+
+        append(assembler, "xyz\nTEXT 2 ok\n");
+        assertTrue(assembler.nextLine());
+        assertEquals("TEXT 2 ok", line(assembler));
+        assertFalse(assembler.nextLine());
+
+        assertFalse(assembler.isDiscarding());
+        assertEquals(1, assembler.overflows());
+        assertEquals(1, assembler.resyncs());
+        assertEquals(1004, assembler.droppedBytes());
+    }
+
+    @Test
+    public void keepsLinesUpToMaxLength() {
+        LineAssembler assembler = new LineAssembler(16, 8);
+        append(assembler, "12345678\n123456789\nOK\n");
+        assertTrue(assembler.nextLine());
+        assertEquals("12345678", line(assembler));
+        assertTrue(assembler.nextLine());
+        assertEquals("OK", line(assembler));
+        assertEquals(1, assembler.overflows());
+        assertEquals(10, assembler.droppedBytes());
+    }
+}
@@ -0,0 +1,63 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageCoalescerTest {
+    private static DeviceCommand command(DeviceCommand.Type type, int id) {
+        return new DeviceCommand.Builder(type, type.name()).id(id).build();
+    }
+
+    @Test
+    public void keepsLatestUpdatePerElementAndProperty() {
+        MessageCoalescer coalescer = new MessageCoalescer();
+        DeviceCommand text = command(DeviceCommand.Type.TEXT, 1);
+        DeviceCommand slider = command(DeviceCommand.Type.SLIDER, 2);
+        DeviceCommand color = command(DeviceCommand.Type.COLOR, 1);
+
+        assertTrue(coalescer.add(command(DeviceCommand.Type.TEXT, 1)));
+        assertFalse(coalescer.add(command(DeviceCommand.Type.SLIDER, 2)));
+        assertFalse(coalescer.add(color));
+        assertFalse(coalescer.add(text));
+        assertFalse(coalescer.add(slider));
+
+        List<DeviceCommand> list = new ArrayList<>();
+        coalescer.drainTo(list);
+        assertEquals(3, list.size());
+        assertSame(text, list.get(0));
+        assertSame(slider, list.get(1));
+        assertSame(color, list.get(2));
+        assertEquals(5, coalescer.received());
+        assertEquals(2, coalescer.coalesced());
+
+        // the next message needs a new frame to be scheduled
+        assertEquals(0, coalescer.pending());
+        assertTrue(coalescer.add(text));
+    }
+
+    @Test
+    public void enableAndDisableReplaceEachOther() {
+        MessageCoalescer coalescer = new MessageCoalescer();
+        DeviceCommand disable = command(DeviceCommand.Type.DISABLE, 4);
+        coalescer.add(command(DeviceCommand.Type.ENABLE, 4));
+        coalescer.add(disable);
+
+        List<DeviceCommand> list = new ArrayList<>();
+        coalescer.drainTo(list);
+        assertEquals(1, list.size());
+        assertSame(disable, list.get(0));
+    }
+
+    @Test
+    public void neverCoalescesMessagesWithoutElement() {
+        MessageCoalescer coalescer = new MessageCoalescer();
+        coalescer.add(command(DeviceCommand.Type.UNKNOWN, -1));
+        coalescer.add(command(DeviceCommand.Type.UNKNOWN, -1));
+        assertEquals(2, coalescer.pending());
+        assertEquals(0, coalescer.coalesced());
+    }
+}
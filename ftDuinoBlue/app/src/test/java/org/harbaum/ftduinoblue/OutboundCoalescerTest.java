@@ -0,0 +1,84 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutboundCoalescerTest {
+    // offer an event and report it as queued if it's to be sent
+    private static boolean send(OutboundCoalescer coalescer, ControlEvent event, boolean busy) {
+        if (!coalescer.offer(event, busy))
+            return false;
+        coalescer.delivered(event);
+        return true;
+    }
+
+    @Test
+    public void keepsLatestUpdatePerElementWhileBusy() {
+        OutboundCoalescer coalescer = new OutboundCoalescer();
+        assertTrue(coalescer.offer(ControlEvent.joystick(1, 0, 0), false));
+
+        ControlEvent slider = ControlEvent.slider(2, 50);
+        ControlEvent joystick = ControlEvent.joystick(1, 30, -20);
+        assertFalse(coalescer.offer(ControlEvent.joystick(1, 10, 10), true));
+        assertFalse(coalescer.offer(slider, true));
+        assertFalse(coalescer.offer(ControlEvent.joystick(1, 20, 0), true));
+        assertFalse(coalescer.offer(joystick, true));
+        assertEquals(2, coalescer.pending());
+        assertEquals(2, coalescer.coalesced());
+
+        // even if the link is idle again, a newer update must not overtake
+        // the one still held back
+        assertFalse(coalescer.offer(ControlEvent.slider(2, 60), false));
+
+        assertSame(joystick, coalescer.poll());
+        assertEquals(60, coalescer.poll().value());
+        assertNull(coalescer.poll());
+    }
+
+    @Test
+    public void suppressesRepeatsOfLastDeliveredValue() {
+        OutboundCoalescer coalescer = new OutboundCoalescer();
+        assertTrue(send(coalescer, ControlEvent.slider(3, 10), false));
+        assertFalse(send(coalescer, ControlEvent.slider(3, 10), false));
+
+        // moving back to the delivered value drops the pending update
+        assertFalse(coalescer.offer(ControlEvent.slider(3, 20), true));
+        assertFalse(coalescer.offer(ControlEvent.slider(3, 10), true));
+        assertEquals(0, coalescer.pending());
+        assertEquals(2, coalescer.suppressed());
+
+        // the same value for another element is sent
+        assertTrue(coalescer.offer(ControlEvent.slider(4, 10), false));
+
+        // after a new connection everything is sent again
+        coalescer.clear();
+        assertTrue(coalescer.offer(ControlEvent.slider(3, 10), false));
+    }
+
+    @Test
+    public void neverHoldsBackDiscreteEvents() {
+        OutboundCoalescer coalescer = new OutboundCoalescer();
+        assertTrue(coalescer.offer(ControlEvent.button(1, true), true));
+        assertTrue(coalescer.offer(ControlEvent.button(1, false), true));
+        assertTrue(coalescer.offer(ControlEvent.button(1, false), true));
+        assertTrue(coalescer.offer(ControlEvent.switchState(2, true), true));
+        assertTrue(coalescer.offer(ControlEvent.text("STATE"), true));
+        assertEquals(0, coalescer.pending());
+    }
+
+    @Test
+    public void sendsValuesDroppedBeforeAgain() {
+        OutboundCoalescer coalescer = new OutboundCoalescer();
+        assertTrue(send(coalescer, ControlEvent.slider(3, 10), false));
+
+        // the transmit queue dropped this one
+        assertTrue(coalescer.offer(ControlEvent.slider(3, 20), false));
+        assertTrue(send(coalescer, ControlEvent.slider(3, 20), false));
+
+        // held back updates count as sent only once queued as well
+        assertFalse(coalescer.offer(ControlEvent.slider(3, 30), true));
+        assertEquals(30, coalescer.poll().value());
+        assertTrue(send(coalescer, ControlEvent.slider(3, 30), false));
+    }
+}
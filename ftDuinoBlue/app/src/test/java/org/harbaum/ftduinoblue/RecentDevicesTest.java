@@ -0,0 +1,44 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RecentDevicesTest {
+    @Test
+    public void keepsTheNewestDevicesFirst() {
+        RecentDevices recent = new RecentDevices(2);
+        recent.add("00:11:22:33:44:55", "ftDuino");
+        recent.add("66:77:88:99:AA:BB", null);
+        recent.add("00:11:22:33:44:55", null);
+
+        assertEquals(2, recent.size());
+        assertEquals("00:11:22:33:44:55", recent.devices().get(0).address);
+        assertEquals("ftDuino", recent.devices().get(0).name);
+
+        // the oldest one is dropped
+        recent.add("CC:DD:EE:FF:00:11", "robot");
+        assertEquals(2, recent.size());
+        assertFalse(recent.contains("66:77:88:99:AA:BB"));
+        assertTrue(recent.contains("cc:dd:ee:ff:00:11"));
+    }
+
+    @Test
+    public void survivesARestart() {
+        RecentDevices recent = new RecentDevices(4);
+        recent.add("66:77:88:99:AA:BB", null);
+        recent.add("00:11:22:33:44:55", "ft\tDuino\n");
+
+        RecentDevices restored = new RecentDevices(4);
+        restored.decode(recent.encode());
+        assertEquals(2, restored.size());
+        assertEquals("ft Duino ", restored.devices().get(0).name);
+        assertEquals("66:77:88:99:AA:BB", restored.devices().get(1).address);
+        assertNull(restored.devices().get(1).name);
+
+        restored.decode("garbage\n\n");
+        assertEquals(0, restored.size());
+        restored.decode(null);
+        assertEquals(0, restored.size());
+    }
+}
@@ -0,0 +1,89 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RequestTableTest {
+    @Test
+    public void matchesRepliesOfOverlappingRequests() {
+        RequestTable requests = new RequestTable(5);
+        requests.add("VERSION", 0);
+        requests.add("LAYOUT", 10);
+        assertTrue(requests.isPending("LAYOUT"));
+
+        assertNull(requests.match("TEXT", 50));
+        assertEquals("LAYOUT", requests.match("LAYOUT", 110).message);
+        assertFalse(requests.isPending("LAYOUT"));
+        assertEquals(1, requests.size());
+        assertEquals(1000, requests.nextDeadline(0));
+
+        // the reply has been sampled
+        assertEquals(100, requests.rtt().srtt());
+        assertEquals(300, requests.rtt().rto());
+
+        // tags tell requests of the same name apart
+        requests.add("SENSOR 1", 1, 200);
+        requests.add("SENSOR 2", 2, 200);
+        assertEquals("SENSOR 2", requests.match("SENSOR", 2, 250).message);
+        assertEquals("SENSOR 1", requests.match("SENSOR", 250).message);
+    }
+
+    @Test
+    public void retriesWithBackoffUntilTriesAreUsedUp() {
+        RequestTable requests = new RequestTable(3);
+        requests.add("VERSION", 0);
+        requests.add("LAYOUT", 500);
+        assertTrue(requests.expired(999).isEmpty());
+
+        RequestTable.Request request = requests.expired(1000).get(0);
+        assertEquals("VERSION", request.name);
+        assertEquals(2, request.retries());
+        assertEquals(3000, request.deadline());
+        assertTrue(requests.expired(1000).isEmpty());
+
+        // the beginning of a reply counts as its round trip and postpones the
+        // deadline. Unrelated lines don't
+        LineAssembler assembler = new LineAssembler();
+        assembler.append("TEXT 1 x".getBytes(StandardCharsets.UTF_8));
+        requests.extend(assembler, 1200);
+        assertEquals(-1, requests.rtt().srtt());
+        assembler.clear();
+        assembler.append("LAYOUT <layout".getBytes(StandardCharsets.UTF_8));
+        requests.extend(assembler, 1400);
+        assertEquals(900, requests.rtt().srtt());
+        assertEquals(2700, requests.rtt().rto());
+        assertEquals(1600, requests.nextDeadline(1400));
+
+        // replies to requests sent again are never sampled
+        requests.match("VERSION", 2000);
+        assertEquals(900, requests.rtt().srtt());
+
+        assertEquals(2, requests.expired(4100).get(0).retries());
+        assertEquals(1, requests.expired(9500).get(0).retries());
+        request = requests.expired(19500).get(0);
+        assertEquals("LAYOUT", request.name);
+        assertEquals(0, request.retries());
+        assertEquals(0, requests.size());
+        assertEquals(4, requests.timeouts());
+        assertEquals(RttEstimator.MAX_RTO, requests.rtt().rto());
+    }
+
+    @Test
+    public void backsOffOncePerTimeout() {
+        RequestTable requests = new RequestTable(3);
+        requests.add("VERSION", 0);
+        requests.add("LAYOUT", 0);
+        requests.add("STATE", 0);
+
+        List<RequestTable.Request> expired = requests.expired(1000);
+        assertEquals(3, expired.size());
+        assertEquals(3, requests.timeouts());
+        assertEquals(2000, requests.rtt().rto());
+        for (RequestTable.Request request : expired)
+            assertEquals(3000, request.deadline());
+    }
+}
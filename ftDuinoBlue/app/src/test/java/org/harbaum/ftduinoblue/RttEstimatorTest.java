@@ -0,0 +1,46 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RttEstimatorTest {
+    @Test
+    public void followsRfc6298() {
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(RttEstimator.INITIAL_RTO, rtt.rto());
+
+        rtt.sample(400);
+        assertEquals(400, rtt.srtt());
+        assertEquals(200, rtt.rttvar());
+        assertEquals(1200, rtt.rto());
+
+        rtt.sample(240);
+        assertEquals(380, rtt.srtt());
+        assertEquals(190, rtt.rttvar());
+        assertEquals(1140, rtt.rto());
+
+        // a steady link converges towards its round trip time
+        for (int i = 0; i < 100; i++)
+            rtt.sample(50);
+        assertEquals(RttEstimator.MIN_RTO, rtt.rto());
+    }
+
+    @Test
+    public void backsOffOnTimeouts() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.backoff();
+        assertEquals(2 * RttEstimator.INITIAL_RTO, rtt.rto());
+        for (int i = 0; i < 10; i++)
+            rtt.backoff();
+        assertEquals(RttEstimator.MAX_RTO, rtt.rto());
+
+        // the next sample ends the backoff
+        rtt.sample(100);
+        assertEquals(300, rtt.rto());
+
+        rtt.reset();
+        assertEquals(-1, rtt.srtt());
+        assertEquals(RttEstimator.INITIAL_RTO, rtt.rto());
+    }
+}
@@ -0,0 +1,123 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class TransmitLanesTest {
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] b) {
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void discreteFramesOvertakeQueuedOnes() {
+        TransmitLanes lanes = new TransmitLanes(0, 1000);
+        lanes.write(TransmitLanes.BULK, bytes("LAYOUT:6C\n"));
+        lanes.write(TransmitLanes.CONTINUOUS, bytes("SLIDER 1 5:F3\n"));
+        lanes.write(TransmitLanes.DISCRETE, bytes("BUTTON 2 DOWN:D7\n"));
+
+        assertEquals("BUTTON 2 DOWN:D7\n", string(lanes.poll(20)));
+        assertEquals("SLIDER 1 5:F3\n", string(lanes.poll(20)));
+        assertEquals("LAYOUT:6C\n", string(lanes.poll(20)));
+        assertNull(lanes.poll(20));
+        assertTrue(lanes.isEmpty());
+        assertEquals(1, lanes.frames(TransmitLanes.DISCRETE));
+        assertEquals(1, lanes.frames(TransmitLanes.BULK));
+    }
+
+    @Test
+    public void completesFrameBeforeSwitchingLanes() {
+        TransmitLanes lanes = new TransmitLanes(0, 1000);
+        lanes.write(TransmitLanes.CONTINUOUS, bytes("JOYSTICK 12 -100 100:3C\n"));
+        lanes.write(TransmitLanes.CONTINUOUS, bytes("SLIDER 1 5:F3\n"));
+        assertEquals("JOYSTICK 12 -100 100", string(lanes.poll(20)));
+
+        // the button has to wait for the rest of the joystick line but not
+        // for the slider
+        lanes.write(TransmitLanes.DISCRETE, bytes("BUTTON 2 UP:2D\n"));
+        assertEquals(":3C\n", string(lanes.poll(20)));
+        assertEquals("BUTTON 2 UP:2D\n", string(lanes.poll(20)));
+        assertEquals("SLIDER 1 5:F3\n", string(lanes.poll(20)));
+        assertTrue(lanes.isEmpty());
+    }
+
+    @Test
+    public void packsFramesOfSameLane() {
+        TransmitLanes lanes = new TransmitLanes(0, 1000);
+        lanes.write(TransmitLanes.DISCRETE, bytes("BUTTON 1 DOWN:D6\n"));
+        lanes.write(TransmitLanes.DISCRETE, bytes("BUTTON 1 UP:2C\n"));
+        assertEquals("BUTTON 1 DOWN:D6\nBUTTON 1 UP:2C\n", string(lanes.poll(100)));
+        assertNull(lanes.poll(100));
+        assertEquals(2, lanes.frames(TransmitLanes.DISCRETE));
+
+        assertEquals(TransmitLanes.DISCRETE, TransmitLanes.laneOf(ControlEvent.switchState(1, true)));
+        assertEquals(TransmitLanes.CONTINUOUS, TransmitLanes.laneOf(ControlEvent.joystick(1, 0, 0)));
+        assertEquals(TransmitLanes.BULK, TransmitLanes.laneOf(ControlEvent.text("STATE")));
+    }
+
+    @Test
+    public void recordsLatenciesOfCompletedFrames() {
+        LatencyStats stats = new LatencyStats();
+        TransmitLanes lanes = new TransmitLanes(0, 1000);
+        lanes.setStats(stats);
+
+        ControlEvent joystick = ControlEvent.joystick(12, -100, 100);
+        byte[] frame = bytes("JOYSTICK 12 -100 100:3C\n");
+        lanes.write(TransmitLanes.CONTINUOUS, joystick.type(), joystick.created(), frame, 0, frame.length);
+
+        // the frame is only written once its last chunk is
+        lanes.poll(20);
+        lanes.onWritten();
+        assertEquals(0, stats.count(ControlEvent.Type.JOYSTICK));
+        lanes.poll(20);
+        lanes.onWritten();
+        assertEquals(1, stats.count(ControlEvent.Type.JOYSTICK));
+
+        long queued = stats.percentile(ControlEvent.Type.JOYSTICK, LatencyStats.QUEUED, 100);
+        long written = stats.percentile(ControlEvent.Type.JOYSTICK, LatencyStats.WRITTEN, 100);
+        assertTrue(queued <= written);
+
+        // a chunk that's never confirmed isn't recorded
+        lanes.write(TransmitLanes.BULK, bytes("LAYOUT:6C\n"));
+        lanes.poll(20);
+        lanes.poll(20);
+        lanes.onWritten();
+        assertEquals(0, stats.count(ControlEvent.Type.TEXT));
+    }
+
+    @Test
+    public void reportsCongestionOfAnyLane() {
+        TransmitLanes lanes = new TransmitLanes(10, 20);
+        lanes.write(TransmitLanes.CONTINUOUS, bytes("SLIDER 1 5:F3\n"));
+        assertFalse(lanes.isCongested());
+        lanes.write(TransmitLanes.BULK, bytes("LAYOUTHASH:00\n"));
+        lanes.write(TransmitLanes.BULK, bytes("STATE:00\n"));
+        assertTrue(lanes.isCongested());
+
+        // the slider is sent first, the bulk lane drains afterwards
+        lanes.poll(20);
+        assertTrue(lanes.isCongested());
+        lanes.poll(20);
+        assertFalse(lanes.isCongested());
+    }
+
+    @Test
+    public void reportsTheLaneOfTheNextChunk() {
+        TransmitLanes lanes = new TransmitLanes(0, 1000);
+        assertEquals(-1, lanes.peekLane());
+        lanes.write(TransmitLanes.CONTINUOUS, bytes("JOYSTICK 12 -100 100:3C\n"));
+        lanes.poll(20);
+        lanes.write(TransmitLanes.DISCRETE, bytes("BUTTON 2 DOWN:D7\n"));
+
+        // the started frame is completed first
+        assertEquals(TransmitLanes.CONTINUOUS, lanes.peekLane());
+        lanes.poll(20);
+        assertEquals(TransmitLanes.DISCRETE, lanes.peekLane());
+    }
+}
@@ -0,0 +1,91 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class TransmitQueueTest {
+    private static String drain(TransmitQueue queue, int max) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk;
+        while ((chunk = queue.poll(max)) != null) {
+            assertTrue(chunk.length <= max);
+            out.write(chunk, 0, chunk.length);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void splitsIntoChunks() {
+        TransmitQueue queue = new TransmitQueue(16, 0, 100);
+        queue.write("JOYSTICK 12 -100 100:3C\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(24, queue.size());
+        assertEquals(20, queue.poll(20).length);
+        assertEquals(4, queue.poll(20).length);
+        assertNull(queue.poll(20));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void keepsOrderAcrossWrapAndGrowth() {
+        TransmitQueue queue = new TransmitQueue(16, 0, 1000);
+        StringBuilder expected = new StringBuilder();
+        StringBuilder received = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            String msg = "SLIDER " + i + " " + (i * 7) + "\n";
+            expected.append(msg);
+            queue.write(msg.getBytes(StandardCharsets.UTF_8));
+            if (i % 3 == 0) {
+                byte[] chunk = queue.poll(20);
+                received.append(new String(chunk, StandardCharsets.UTF_8));
+            }
+        }
+        received.append(drain(queue, 20));
+        assertEquals(expected.toString(), received.toString());
+    }
+
+    @Test
+    public void reportsWatermarks() {
+        final int[] events = new int[2];
+        TransmitQueue queue = new TransmitQueue(16, 10, 40);
+        queue.setListener(new TransmitQueue.Listener() {
+            @Override public void onCongested(int depth) { events[0]++; }
+            @Override public void onDrained(int depth) { events[1]++; }
+        });
+
+        byte[] msg = new byte[15];
+        queue.write(msg);
+        queue.write(msg);
+        assertFalse(queue.isCongested());
+        queue.write(msg);
+        queue.write(msg);
+        assertTrue(queue.isCongested());
+        assertEquals(1, events[0]);
+
+        queue.poll(20);
+        queue.poll(20);
+        assertTrue(queue.isCongested());
+        queue.poll(15);
+        assertFalse(queue.isCongested());
+        assertEquals(1, events[1]);
+        assertEquals(60, queue.maxDepth());
+    }
+
+    @Test
+    public void dropsMessagesOnceFull() {
+        TransmitQueue queue = new TransmitQueue(16, 64, 0, 1000);
+        byte[] msg = new byte[30];
+        assertTrue(queue.write(msg));
+        assertTrue(queue.write(msg));
+        assertFalse(queue.write(msg));
+        assertEquals(60, queue.size());
+        assertEquals(64, queue.capacity());
+        assertEquals(1, queue.dropped());
+
+        queue.poll(20);
+        assertTrue(queue.write(new byte[20]));
+    }
+}
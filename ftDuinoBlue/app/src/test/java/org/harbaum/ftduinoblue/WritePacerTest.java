@@ -0,0 +1,85 @@
+package org.harbaum.ftduinoblue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WritePacerTest {
+    @Test
+    public void spacesWritesByRate() {
+        WritePacer pacer = new WritePacer();
+        assertEquals(0, pacer.delay(1000));
+
+        // 96 bytes at 960 bytes/s take 100ms
+        pacer.onWrite(96, 1000);
+        assertEquals(100, pacer.delay(1000));
+        assertEquals(40, pacer.delay(1060));
+        assertEquals(0, pacer.delay(1100));
+
+        // an idle link doesn't save up for bursts
+        pacer.onWrite(96, 5000);
+        assertEquals(100, pacer.delay(5000));
+    }
+
+    @Test
+    public void doublesUntilTheFirstOverload() {
+        WritePacer pacer = new WritePacer();
+        long now = 0;
+        for (int i = 0; i < 3; i++) {
+            pacer.onWrite(20, now);
+            pacer.onWriteComplete(now + 10);
+            now += 100;
+        }
+        assertEquals(8 * WritePacer.INITIAL_RATE, pacer.rate());
+
+        pacer.onOverload(now);
+        int rate = 4 * WritePacer.INITIAL_RATE;
+        assertEquals(rate, pacer.rate());
+
+        // from then on the rate only grows additively
+        for (int i = 0; i < 10; i++) {
+            pacer.onWrite(20, now);
+            pacer.onWriteComplete(now + 10);
+            now += 100;
+        }
+        rate += 160;
+        assertEquals(rate, pacer.rate());
+
+        // a write taking far longer than usual halves the rate
+        pacer.onWrite(20, now);
+        pacer.onWriteComplete(now + 100);
+        assertEquals(rate / 2, pacer.rate());
+
+        // further signs right after are part of the same overload
+        pacer.onOverload(now + 200);
+        assertEquals(rate / 2, pacer.rate());
+        pacer.onOverload(now + 1000);
+        assertEquals(rate / 4, pacer.rate());
+        assertEquals(3, pacer.decreases());
+
+        for (int i = 0; i < 10; i++)
+            pacer.onOverload(now += 1000);
+        assertEquals(WritePacer.MIN_RATE, pacer.rate());
+
+        pacer.reset();
+        assertEquals(WritePacer.INITIAL_RATE, pacer.rate());
+        assertEquals(0, pacer.decreases());
+    }
+
+    @Test
+    public void startsAtTheRateOfTheLink() {
+        WritePacer pacer = new WritePacer();
+
+        // 244 bytes every 50ms
+        pacer.seed(244, 50);
+        assertEquals(4880, pacer.rate());
+        pacer.onWrite(244, 0);
+        assertEquals(50, pacer.delay(0));
+
+        // but never below what a HM-10 accepts
+        pacer.seed(20, 50);
+        assertEquals(WritePacer.INITIAL_RATE, pacer.rate());
+        pacer.seed(512, 1);
+        assertEquals(WritePacer.MAX_RATE, pacer.rate());
+    }
+}
@@ -0,0 +1,42 @@
+package org.harbaum.ftduinoblue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Parsing of the builtin demo layouts
+@State(Scope.Thread)
+public class LayoutXmlParserBenchmark {
+    @Param({ "demo_layout_1", "demo_layout_2", "demo_layout_3",
+             "demo_layout_4", "demo_layout_5", "demo_layout_6" })
+    public String layout;
+
+    private byte[] mXml;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = getClass().getResourceAsStream("/" + layout + ".xml")) {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                out.write(buffer, 0, n);
+        }
+        mXml = out.toByteArray();
+    }
+
+    @Benchmark
+    public LayoutXmlParser.Layout parse() throws XmlPullParserException, IOException {
+        LayoutXmlParser parser = new LayoutXmlParser();
+        parser.setScale(2.0f);
+        return parser.parse(new ByteArrayInputStream(mXml));
+    }
+}
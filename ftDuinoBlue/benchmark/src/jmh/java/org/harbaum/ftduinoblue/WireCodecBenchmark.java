@@ -0,0 +1,119 @@
+package org.harbaum.ftduinoblue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+// Throughput and allocations of the receive and transmit paths of the
+// Hm10Service. The receive benchmarks process a typical STATE reply split into
+// 20 byte chunks the way it arrives via BLE notifications.
+@State(Scope.Thread)
+public class WireCodecBenchmark {
+    private final static String[] REPLY = {
+            "SWITCH 1 ON",
+            "TEXT 2 LED brightness",
+            "SLIDER 3 128",
+            "COLOR 2 #ff0000",
+            "SLIDER 5 50",
+            "DISABLE 4",
+    };
+
+    private byte[][] mChunks;
+    private final LineAssembler mAssembler = new LineAssembler();
+    private final FrameDecoder mDecoder = new FrameDecoder();
+    private final CommandRegistry mRegistry = new CommandRegistry();
+    private final byte[] mFrame = new byte[BinaryFrame.MAX_LENGTH];
+    private final FrameEncoder mEncoder = new FrameEncoder();
+    private final ControlEvent mJoystick = ControlEvent.joystick(12, -100, 100);
+    private final Version mVersion = new Version("1.0.0");
+    private final Version mMinVersion = new Version("1.1.0");
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (String line : REPLY) {
+            byte[] frame = FrameEncoder.appendChecksumAndNl(line);
+            stream.write(frame, 0, frame.length);
+        }
+
+        byte[] data = stream.toByteArray();
+        mChunks = new byte[(data.length + 19) / 20][];
+        for (int i = 0; i < mChunks.length; i++)
+            mChunks[i] = Arrays.copyOfRange(data, 20 * i, Math.min(data.length, 20 * (i + 1)));
+
+        mBlackhole = blackhole;
+        CommandRegistry.Handler handler = new CommandRegistry.Handler() {
+            @Override
+            public void handle(DeviceCommand command) {
+                mBlackhole.consume(command);
+            }
+        };
+        mRegistry.register("TEXT",    DeviceCommand.Type.TEXT,    CommandRegistry.ID_TEXT,    handler);
+        mRegistry.register("COLOR",   DeviceCommand.Type.COLOR,   CommandRegistry.ID_COLOR,   handler);
+        mRegistry.register("SWITCH",  DeviceCommand.Type.SWITCH,  CommandRegistry.ID_BOOLEAN, handler);
+        mRegistry.register("SLIDER",  DeviceCommand.Type.SLIDER,  CommandRegistry.ID_INT,     handler);
+        mRegistry.register("DISABLE", DeviceCommand.Type.DISABLE, CommandRegistry.ID,         handler);
+        mRegistry.setDefaultHandler(handler);
+    }
+
+    @Benchmark
+    public byte[] textFrame() {
+        return FrameEncoder.appendChecksumAndNl("JOYSTICK 12 -100 100");
+    }
+
+    @Benchmark
+    public int encodedTextFrame() {
+        return mEncoder.encode(mJoystick);
+    }
+
+    @Benchmark
+    public int binaryFrame() {
+        return BinaryFrame.encode(mJoystick, mFrame);
+    }
+
+    @Benchmark
+    public int reassemble() {
+        int lines = 0;
+        for (byte[] chunk : mChunks) {
+            mAssembler.append(chunk);
+            while (mAssembler.nextLine())
+                lines++;
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public int decode() {
+        int valid = 0;
+        for (byte[] chunk : mChunks) {
+            mAssembler.append(chunk);
+            while (mAssembler.nextLine())
+                if (mDecoder.decode(mAssembler))
+                    valid++;
+        }
+        return valid;
+    }
+
+    @Benchmark
+    public int dispatch() {
+        int dispatched = 0;
+        for (byte[] chunk : mChunks) {
+            mAssembler.append(chunk);
+            while (mAssembler.nextLine())
+                if (mDecoder.decode(mAssembler) && mRegistry.dispatch(mDecoder))
+                    dispatched++;
+        }
+        return dispatched;
+    }
+
+    @Benchmark
+    public int compareVersion() {
+        return mVersion.compareTo(mMinVersion);
+    }
+}
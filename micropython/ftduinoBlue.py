@@ -5,22 +5,96 @@
 # For more info see http://ftduino.de/blue  
 #
 
+from micropython import const
 from hm10 import HM10
 
+# binary frames sent by the app for control events. See BinaryFrame.java
+_OP_BUTTON = const(0x81)
+_OP_SWITCH = const(0x82)
+_OP_SLIDER = const(0x83)
+_OP_JOYSTICK = const(0x84)
+
+# number of value bytes following the id
+_OP_VALUES = { _OP_BUTTON: 1, _OP_SWITCH: 1, _OP_SLIDER: 2, _OP_JOYSTICK: 4 }
+
 class ftduinoBlue(HM10):
     def __init__(self, layout, name="ESP32"):
         super().__init__(name)
-        self.layout = layout
+        # the app receives the layout without leading and trailing whitespace
+        # and hashes exactly that
+        self.layout = layout.strip()
+        self.layout_hash = self.fnv1a(self.layout.encode("utf-8"))
         self.rx_buffer = b""
 
     def rx(self, data):
         # all data is buffered binary since multibyte characters may come in two chunks
         self.rx_buffer = self.rx_buffer + data
 
-        # check if we have a complete line in buffer
-        if b"\n" in self.rx_buffer:
-            cmd, self.rx_buffer = self.rx_buffer.split(b"\n", 1)
-            self.handle_line(cmd.strip())
+        while self.rx_buffer:
+            # binary frames start with a byte >= 0x80, text never does
+            if self.rx_buffer[0] >= 0x80:
+                if not self.handle_frame():
+                    break
+            # check if we have a complete line in buffer
+            elif b"\n" in self.rx_buffer:
+                cmd, self.rx_buffer = self.rx_buffer.split(b"\n", 1)
+                self.handle_line(cmd.strip())
+            else:
+                break
+
+    def handle_frame(self):
+        # returns False if more data is needed to complete the frame
+        op = self.rx_buffer[0]
+        if op not in _OP_VALUES:
+            # not a frame, skip the byte
+            self.rx_buffer = self.rx_buffer[1:]
+            return True
+
+        # parse varint id
+        id, shift, pos = 0, 0, 1
+        while True:
+            if pos >= len(self.rx_buffer): return False
+            b = self.rx_buffer[pos]
+            id |= (b & 0x7f) << shift
+            shift += 7
+            pos += 1
+            if b < 0x80: break
+
+        end = pos + _OP_VALUES[op]
+        if end >= len(self.rx_buffer): return False
+
+        if self.crc8(self.rx_buffer[:end]) != self.rx_buffer[end]:
+            # broken frame, resync on the next opcode
+            pos = 1
+            while pos < len(self.rx_buffer) and self.rx_buffer[pos] not in _OP_VALUES:
+                pos += 1
+            self.rx_buffer = self.rx_buffer[pos:]
+            return True
+
+        v = self.rx_buffer[pos:end]
+        self.rx_buffer = self.rx_buffer[end+1:]
+
+        if op == _OP_BUTTON:
+            self.event("BUTTON", id, "DOWN" if v[0] else "UP")
+        elif op == _OP_SWITCH:
+            self.event("SWITCH", id, "ON" if v[0] else "OFF")
+        elif op == _OP_SLIDER:
+            self.event("SLIDER", id, self.int16(v, 0))
+        else:
+            self.event("JOYSTICK", id, self.int16(v, 0), self.int16(v, 2))
+        return True
+
+    def int16(self, data, pos):
+        v = (data[pos] << 8) | data[pos+1]
+        return v - 0x10000 if v & 0x8000 else v
+
+    def crc8(self, data):
+        c = 0
+        for i in data:
+            c ^= i
+            for _ in range(8):
+                c = ((c << 1) ^ 0x07) & 0xff if c & 0x80 else (c << 1) & 0xff
+        return c
 
     def handle_line(self, line):
         # verify checksum if present
@@ -34,6 +108,12 @@ class ftduinoBlue(HM10):
         else:
             self.handle_cmd(line.decode("utf-8"))
 
+    def fnv1a(self, data):
+        # 32 bit FNV-1a hash, the app uses it to identify cached layouts
+        h = 0x811c9dc5
+        for i in data: h = ((h ^ i) * 0x01000193) & 0xffffffff
+        return "%08x" % h
+
     def checksum(self, data):
         c = 0
         for i in data: c = (c + i) & 0xff
@@ -44,7 +124,12 @@ class ftduinoBlue(HM10):
         cmd_name = cmd.split()[0]
 
         if cmd_name == "VERSION":
-            self.send_reply("VERSION 1.0.0")
+            # 1.1.0 tells the app that binary frames are understood,
+            # 1.2.0 that the layout hash can be queried
+            self.send_reply("VERSION 1.2.0")
+        elif cmd_name == "LAYOUTHASH":
+            # the app skips the layout transfer if it has a copy with this hash
+            self.send_reply("LAYOUTHASH " + self.layout_hash)
         elif cmd_name == "LAYOUT":
             self.send_reply("LAYOUT " + self.layout)
         elif cmd_name == "STATE":
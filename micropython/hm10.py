@@ -9,6 +9,11 @@ from micropython import const
 _IRQ_CENTRAL_CONNECT = const(1)
 _IRQ_CENTRAL_DISCONNECT = const(2)
 _IRQ_GATTS_WRITE = const(3)
+_IRQ_MTU_EXCHANGED = const(21)
+
+# the app asks for a larger MTU. Writes and notifications may then carry up
+# to MTU-3 bytes instead of the 20 bytes of a genuine HM-10 module
+_MTU = const(247)
 
 # HM-10 adapter compatible UUIDs, one characteristic only, R/W/N
 _UART_UUID = bluetooth.UUID("0000FFE0-0000-1000-8000-00805F9B34FB")
@@ -22,7 +27,12 @@ class HM10:
         self._ble.active(True)
         self._ble.irq(self._irq)
         ((self._handle_uart,),) = self._ble.gatts_register_services((_UART_SERVICE,))
-        self._ble.gatts_set_buffer(self._handle_uart, 20, True)
+        self._ble.gatts_set_buffer(self._handle_uart, _MTU - 3, True)
+        self._chunk = 20
+        try:
+            self._ble.config(mtu=_MTU)
+        except:
+            pass   # older firmware, stay with the default MTU
 
         self._payload = bytes()
         self.adv_append(0x01, struct.pack("B", 0x06))
@@ -40,18 +50,22 @@ class HM10:
             self._conn_handle,_,_ = data
         elif event == _IRQ_CENTRAL_DISCONNECT:
             self._conn_handle = None
+            self._chunk = 20
             self._ble.gap_advertise(100000, adv_data=self._payload)
         elif event == _IRQ_GATTS_WRITE:
             conn_handle, value_handle = data
             self.rx(self._ble.gatts_read(value_handle))
+        elif event == _IRQ_MTU_EXCHANGED:
+            conn_handle, mtu = data
+            self._chunk = min(mtu, _MTU) - 3
 
     def rx(self, data):
         print("RX:", data)
 
     def tx(self, data):
         while data:
-            # BLE can send max 20 bytes per message
-            chunk = data if len(data) <= 20 else data[:20]
+            # BLE can send max MTU-3 bytes per message
+            chunk = data[:self._chunk]
             self._ble.gatts_notify(self._conn_handle, self._handle_uart, chunk)
             data = data[len(chunk):]
             time.sleep(0.01)          # sending too fast results in out of memory